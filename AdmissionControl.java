@@ -0,0 +1,194 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.server;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *
+ * @author hsamp
+ */
+
+/**
+ * Admission control for the server: decides whether a request may run before any work is done for it.
+ * Every client address has a token bucket that each request draws from according to the cost of its command class,
+ * and every command class also has a server wide bucket so, for example, all clients together can only trigger a few
+ * early lecture compactions a minute. On top of that only a fixed number of requests run at once.
+ * Streams (subscribe and replicate) stay open for as long as the client wants, so instead of a request slot they take
+ * one of a limited number of stream places, with only a few per client address.
+ * A refused request is answered straight away with an "Overloaded" reply telling the client when to retry,
+ * instead of waiting in a queue.
+ */
+class AdmissionControl {
+    private static final int MAX_IN_FLIGHT = Integer.getInteger("scheduler.maxInFlight", 32);           //requests running at once
+    private static final int CLIENT_BURST = Integer.getInteger("scheduler.rate.clientBurst", 100);      //tokens a client can save up
+    private static final int CLIENT_PER_SECOND = Integer.getInteger("scheduler.rate.clientPerSecond", 20); //tokens a client regains a second
+    private static final int MAX_TRACKED_CLIENTS = 10000;  //idle client buckets are dropped past this many
+    private static final long BUSY_RETRY_MILLIS = 200;      //suggested wait when every request slot is in use
+    private static final int MAX_STREAMS = Integer.getInteger("scheduler.maxStreams", 256);                    //streams open at once
+    private static final int MAX_STREAMS_PER_CLIENT = Integer.getInteger("scheduler.maxStreamsPerClient", 8);  //streams one address may hold open
+    private static final long STREAM_RETRY_MILLIS = 5000;   //suggested wait when no stream place is free, streams are long lived
+
+    /** Kinds of command, each with its cost per request from a client's bucket and its own server wide rate. */
+    enum CommandClass {
+        READ(1, 2000, 1000),          //displayschedule, ifchanged, utilization, status, stop
+        WRITE(2, 200, 100),           //add, remove
+        STREAM(5, 50, 10),            //subscribe, replicate, charged once when the stream opens
+        BULK(50, 2, 0.2),             //import
+        COMPACTION(50, 2, 0.2);       //earlylectures, rewrites a whole week
+
+        private final int cost;
+        private final int burst;
+        private final double perSecond;
+
+        CommandClass(int cost, int burst, double perSecond) {
+            this.cost = cost;
+            this.burst = burst;
+            this.perSecond = perSecond;
+        }
+    }
+
+    private final Map<String, TokenBucket> clientBuckets = new ConcurrentHashMap<>();
+    private final Map<CommandClass, TokenBucket> classBuckets = new EnumMap<>(CommandClass.class);
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final Semaphore streamPlaces = new Semaphore(MAX_STREAMS);
+    private final Map<String, Integer> clientStreams = new ConcurrentHashMap<>();  //open streams per client address
+    private final AtomicLong rateLimited = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    AdmissionControl() {
+        for (CommandClass commandClass : CommandClass.values()) {
+            classBuckets.put(commandClass, new TokenBucket(commandClass.burst, commandClass.perSecond));
+        }
+    }
+
+    /**
+     * Checks the client's and the command class's rate limits and takes their tokens if both allow the request.
+     * @return null if the request may go ahead, otherwise the "Overloaded" reply to send.
+     */
+    String admit(String clientAddress, CommandClass commandClass) {
+        if (clientBuckets.size() > MAX_TRACKED_CLIENTS) {
+            clientBuckets.values().removeIf(TokenBucket::isFull);
+        }
+        TokenBucket client = clientBuckets.computeIfAbsent(clientAddress, a -> new TokenBucket(CLIENT_BURST, CLIENT_PER_SECOND));
+        long waitMillis = client.take(commandClass.cost);
+        if (waitMillis > 0) {
+            rateLimited.incrementAndGet();
+            return "Overloaded: too many requests from " + clientAddress + ", retry after " + waitMillis + " ms";
+        }
+        waitMillis = classBuckets.get(commandClass).take(1);
+        if (waitMillis > 0) {
+            client.refund(commandClass.cost);  //the request is not run so the client keeps its tokens
+            rateLimited.incrementAndGet();
+            return "Overloaded: too many " + commandClass.name().toLowerCase() + " requests, retry after " + waitMillis + " ms";
+        }
+        return null;
+    }
+
+    //takes one of the request slots without waiting, false if all are in use
+    boolean tryStart() {
+        return inFlight.tryAcquire();
+    }
+
+    //gives back the slot taken by tryStart
+    void finish() {
+        inFlight.release();
+    }
+
+    /**
+     * Takes a stream place for the client if it has fewer than MAX_STREAMS_PER_CLIENT open and the server has one free.
+     * @return null if the stream may open, otherwise the "Overloaded" reply to send.
+     */
+    String openStream(String clientAddress) {
+        boolean[] allowed = {false};
+        clientStreams.compute(clientAddress, (address, open) -> {
+            int count = open == null ? 0 : open;
+            if (count >= MAX_STREAMS_PER_CLIENT) {
+                return open;
+            }
+            allowed[0] = true;
+            return count + 1;
+        });
+        if (!allowed[0]) {
+            shed.incrementAndGet();
+            return "Overloaded: " + clientAddress + " already has " + MAX_STREAMS_PER_CLIENT + " streams open, retry after " + STREAM_RETRY_MILLIS + " ms";
+        }
+        if (!streamPlaces.tryAcquire()) {
+            releaseClientStream(clientAddress);
+            shed.incrementAndGet();
+            return "Overloaded: too many open streams, retry after " + STREAM_RETRY_MILLIS + " ms";
+        }
+        return null;
+    }
+
+    //gives back the stream place taken by openStream
+    void closeStream(String clientAddress) {
+        streamPlaces.release();
+        releaseClientStream(clientAddress);
+    }
+
+    private void releaseClientStream(String clientAddress) {
+        clientStreams.computeIfPresent(clientAddress, (address, open) -> open == 1 ? null : open - 1);
+    }
+
+    //reply for a request refused because the server is already running as many requests as it allows
+    String busy() {
+        shed.incrementAndGet();
+        return "Overloaded: server busy, retry after " + BUSY_RETRY_MILLIS + " ms";
+    }
+
+    //counts of refused requests for the status command
+    String stats() {
+        return "rate limited " + rateLimited.get() + ", shed " + shed.get() + ", open streams " + (MAX_STREAMS - streamPlaces.availablePermits());
+    }
+
+    /** Token bucket refilled continuously at a fixed rate up to its burst size. */
+    static class TokenBucket {
+        private final double burst;
+        private final double perNano;
+        private double tokens;
+        private long lastNanos = System.nanoTime();
+
+        TokenBucket(double burst, double perSecond) {
+            this.burst = burst;
+            this.perNano = perSecond / 1_000_000_000.0;
+            this.tokens = burst;
+        }
+
+        //takes cost tokens if there are enough, returns 0 if taken or the milliseconds until there would be enough
+        synchronized long take(int cost) {
+            refill();
+            if (tokens >= cost) {
+                tokens -= cost;
+                return 0;
+            }
+            if (cost > burst) {
+                return Long.MAX_VALUE;  //can never be afforded, only happens if the limits are misconfigured
+            }
+            return Math.max(1, (long) Math.ceil((cost - tokens) / perNano / 1_000_000.0));
+        }
+
+        //puts back tokens taken for a request that was refused further on
+        synchronized void refund(int cost) {
+            tokens = Math.min(burst, tokens + cost);
+        }
+
+        //true when the bucket is full, so forgetting it changes nothing
+        synchronized boolean isFull() {
+            refill();
+            return tokens >= burst;
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastNanos) * perNano);
+            lastNanos = now;
+        }
+    }
+}
@@ -4,6 +4,16 @@
  */
 package com.mycompany.hellofx;
 
+import java.io.File;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+import javafx.application.Platform;
+import javafx.stage.FileChooser;
+
 /**
  *
  * @author hsamp
@@ -13,10 +23,23 @@ package com.mycompany.hellofx;
  * Controller class for the client GUI. It handles user interactions: 
  * building command strings from input fields and invoking the model to send requests to the server.
  * The responses from the server are then displayed in the view's text area.
+ * Requests run in the background so the window stays responsive. A click that repeats a request still on its way
+ * is ignored, a read repeated just after its answer arrived is not sent again, and while a change to the schedule
+ * is pending the buttons making changes are disabled and reads wait for it so they show its result.
  */
 public class ClientController {
+    private static final int AUTO_SCHEDULE_WEEKS = 13;  //Auto Schedule searches this many weeks from the selected date, about a semester
+    private static final long READ_DEBOUNCE_MILLIS = 300;  //a read repeated this soon after its answer arrived is not sent again
     private final ClientModel model;
     private final ClientView view;
+    private ClientModel.Subscription subscription;  //open live view subscription, null when the live view is off
+    private int liveGeneration = 0;                 //counts live views opened so lines still queued from an older one are ignored
+    //the fields below are only used on the JavaFX thread
+    private final Map<String, CompletableFuture<String>> inFlight = new HashMap<>();  //requests on their way by message
+    private CompletableFuture<String> pendingChange;  //last schedule change sent, null once it has been answered
+    private String lastRead;                          //last read answered and when, for the debounce
+    private long lastReadMillis;
+    private boolean stopped = false;
 
     public ClientController(ClientModel model, ClientView view) {
         this.model = model;
@@ -29,6 +52,10 @@ public class ClientController {
         view.earlyButton.setOnAction(e -> handleEarlyLectures());
         view.otherButton.setOnAction(e -> handleOther()); 
         view.stopButton.setOnAction(e -> handleStop());
+        view.liveButton.setOnAction(e -> handleLive());
+        view.importButton.setOnAction(e -> handleImport());
+        view.autoButton.setOnAction(e -> handleAutoSchedule());
+        view.utilizationButton.setOnAction(e -> handleUtilization());
     }
 
     //handle Add Lecture button send an "add" command with the form data to the server. 
@@ -44,7 +71,7 @@ public class ClientController {
         String message = "add," + date + "," + time + "," + room + "," + module;
 
         //send to server and display response
-        view.responseArea.setText(model.sendMessage(message));
+        sendChange(message);
     }
 
     //handle Remove Lecture button send a "remove" command to the server with the given date, time, and room
@@ -58,28 +85,156 @@ public class ClientController {
             return;
         }
         String message = "remove," + date + "," + time + "," + room + "," + module;
-        view.responseArea.setText(model.sendMessage(message));
+        sendChange(message);
     }
 
     //handle Display Schedule button request the current week schedule from the server
     private void handleDisplay() {
-        view.responseArea.setText(model.sendMessage("displayschedule"));
+        sendRead("displayschedule");
     }
 
     //handle Early Lectures button request the server to shift lectures to earlier slots
     private void handleEarlyLectures() {
         //send the 'earlylectures' command. The server will perform the operation and return a result.
-        view.responseArea.setText(model.sendMessage("earlylectures"));
+        sendChange("earlylectures");
+    }
+
+    //handle Live View button subscribe to changes for the selected week, or stop the live view if it is on
+    private void handleLive() {
+        if (subscription != null) {
+            stopLive();
+            return;
+        }
+        LocalDate monday = view.datePicker.getValue().with(DayOfWeek.MONDAY);
+        LocalDate friday = monday.with(DayOfWeek.FRIDAY);
+        view.clearLiveSchedule("Live Schedule " + monday + " to " + friday + ":");
+        view.liveButton.setText("Stop Live View");
+        //pushed lines arrive on a background thread so hand them to the JavaFX thread
+        int generation = ++liveGeneration;
+        subscription = model.subscribe(monday, friday, line -> Platform.runLater(() -> handleLiveEvent(generation, line)));
+    }
+
+    //apply a pushed change, or end the live view if the server closed the connection
+    private void handleLiveEvent(int generation, String line) {
+        if (subscription == null || generation != liveGeneration) {
+            return;  //from a live view that has already been closed
+        }
+        if (line.equals("CLOSED") || line.startsWith("Connection error") || line.startsWith("Error")) {
+            stopLive();
+            view.responseArea.appendText("\nLive view disconnected" + (line.equals("CLOSED") ? "." : ": " + line));
+            return;
+        }
+        view.applyScheduleEvent(line);
+    }
+
+    //close the live view subscription
+    private void stopLive() {
+        if (subscription != null) {
+            subscription.close();
+            subscription = null;
+        }
+        view.liveButton.setText("Live View");
+    }
+
+    //handle Auto Schedule button book the module in the earliest free slot from the selected date, room is optional
+    private void handleAutoSchedule() {
+        LocalDate from = view.datePicker.getValue();
+        LocalDate to = from.plusWeeks(AUTO_SCHEDULE_WEEKS);
+        String room   = view.roomField.getText().trim();
+        String module = view.moduleBox.getValue();
+        String message = "autoschedule," + from + "," + to + "," + module + (room.isEmpty() ? "" : "," + room);
+        sendChange(message);
+    }
+
+    //handle Utilization button request slot usage for the selected week
+    private void handleUtilization() {
+        LocalDate monday = view.datePicker.getValue().with(DayOfWeek.MONDAY);
+        sendRead("utilization," + monday + "," + monday.with(DayOfWeek.FRIDAY));
+    }
+
+    //handle Import CSV button stream the rows of a chosen date,time,room,module file to the server
+    private void handleImport() {
+        FileChooser chooser = new FileChooser();
+        chooser.setTitle("Import Timetable");
+        chooser.getExtensionFilters().add(new FileChooser.ExtensionFilter("CSV files", "*.csv"));
+        File file = chooser.showOpenDialog(view.getScene().getWindow());
+        if (file == null) {
+            return;  //cancelled
+        }
+        submit("import," + file.getAbsolutePath(), true, () -> model.importCsv(file));
     }
 
     //handle Other button send an unsupported command
     private void handleOther() {
         //send a fixed unknown command to test server exception handling
-        view.responseArea.setText(model.sendMessage("unknownaction"));
+        sendRead("unknownaction");
+    }
+
+    //send a request that only reads the schedule
+    private void sendRead(String message) {
+        submit(message, false, () -> model.sendMessage(message));
+    }
+
+    //send a request that changes the schedule
+    private void sendChange(String message) {
+        submit(message, true, () -> model.sendMessage(message));
+    }
+
+    /**
+     * Runs a request in the background and shows its answer once it arrives.
+     * Nothing is sent if the same request is already on its way or is a read answered less than READ_DEBOUNCE_MILLIS ago.
+     * A change disables the change buttons until it is answered, and any request made meanwhile is sent after it.
+     * @param key identifies the request, equal keys are the same request.
+     * @param change true if the request changes the schedule.
+     */
+    private void submit(String key, boolean change, Supplier<String> request) {
+        if (inFlight.containsKey(key)) {
+            return;  //its answer will be shown when it arrives
+        }
+        if (!change && key.equals(lastRead) && System.currentTimeMillis() - lastReadMillis < READ_DEBOUNCE_MILLIS) {
+            return;  //the answer on screen is still current
+        }
+        CompletableFuture<?> after = pendingChange == null ? CompletableFuture.completedFuture(null) : pendingChange.handle((r, e) -> null);
+        CompletableFuture<String> future = after.thenApplyAsync(ignore -> request.get());
+        inFlight.put(key, future);
+        if (change) {
+            pendingChange = future;
+            setChangesDisabled(true);
+        }
+        future.whenComplete((response, error) -> Platform.runLater(() ->
+                handleResponse(key, change, future, error == null ? response : "Error: " + error.getMessage())));
+    }
+
+    //show a request's answer and enable the change buttons again once no change is pending
+    private void handleResponse(String key, boolean change, CompletableFuture<String> future, String response) {
+        inFlight.remove(key);
+        if (change) {
+            lastRead = null;  //the schedule may have changed so the next read must be sent
+            if (pendingChange == future) {
+                pendingChange = null;
+                setChangesDisabled(stopped);
+            }
+        } else {
+            lastRead = key;
+            lastReadMillis = System.currentTimeMillis();
+        }
+        if (!stopped) {
+            view.responseArea.setText(response);
+        }
+    }
+
+    private void setChangesDisabled(boolean disabled) {
+        view.addButton.setDisable(disabled);
+        view.removeButton.setDisable(disabled);
+        view.earlyButton.setDisable(disabled);
+        view.importButton.setDisable(disabled);
+        view.autoButton.setDisable(disabled);
     }
 
     //handle Stop button send the stop command to terminate the server session and disable client controls
     private void handleStop() {
+        stopLive();
+        stopped = true;
         //the server will respond with "TERMINATE" which signals the client to close
         view.responseArea.setText(model.sendMessage("stop") + "\nConnection closed by client.");
         //disable all action buttons after stopping
@@ -89,5 +244,9 @@ public class ClientController {
         view.earlyButton.setDisable(true);
         view.otherButton.setDisable(true); 
         view.stopButton.setDisable(true);
+        view.liveButton.setDisable(true);
+        view.importButton.setDisable(true);
+        view.autoButton.setDisable(true);
+        view.utilizationButton.setDisable(true);
     }
 }
@@ -5,10 +5,25 @@
 package com.mycompany.hellofx;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 /**
  *
@@ -18,38 +33,517 @@ import java.net.Socket;
 /**
  * Model class for the client side. Manages sending requests to the server and receiving responses.
  * It opens a socket connection to the server for each request, sends the message, and collects the response.
+ * The schedule may be split by date range across several servers (system property scheduler.shards),
+ * in which case each request is routed to the server owning its date and range queries are sent
+ * to every server in the range with the answers merged into one table.
  */
 public class ClientModel {
     private static final int PORT = 1234;
     private static final String HOST = "localhost";
+    //shard list as "from..to=host:port;from..to=host:port", either side of a range may be left empty
+    private static final String SHARDS = System.getProperty("scheduler.shards", "..=" + HOST + ":" + PORT);
+    private static final String TABLE_HEADER = "DATE       | TIME  | ROOM   | MODULE";
+    private static final int MAX_CACHED_TABLES = 64;  //schedule tables kept for conditional requests
+
+    private final List<Shard> shards = new ArrayList<>();
+    //last table and ETag received for each "host:port|request", least recently used dropped first
+    private final Map<String, String[]> tableCache = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String[]> eldest) {
+            return size() > MAX_CACHED_TABLES;
+        }
+    };
+
+    public ClientModel() {
+        for (String entry : SHARDS.split(";")) {
+            if (!entry.isBlank()) {
+                shards.add(new Shard(entry.trim()));
+            }
+        }
+    }
 
     /**
-     * Sends a request message to the server and returns the server's response.
-     * Opens a new TCP connection for the request and closes it after the response is received.
+     * Sends a request message to the server(s) owning it and returns the response.
+     * add and remove go to the shard owning their date, displayschedule and earlylectures go to
+     * every shard overlapping the week (or range), utilization is asked of every shard in the range and their counts
+     * added up into one report, and anything else goes to the first shard.
+     * Schedule tables are cached and only fetched again when the server says they have changed.
      * @param message the request command to send (e.g., "add,...", "remove,...", "earlylectures", etc.)
      * @return the response from the server as a String.
      */
     public String sendMessage(String message) {
-        StringBuilder response = new StringBuilder();
-        try (
-            Socket socket = new Socket(HOST, PORT);
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-            PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
-        ) {
-            //send the request to the server
-            out.println(message);
-            //read all response lines from the server until the connection is closed or a terminate signal is received
-            String line;
-            while ((line = in.readLine()) != null) {
-                response.append(line).append("\n");
-                //if the server signals termination break out
-                if (line.contains("TERMINATE")) {
-                    break;
+        String[] parts = message.split(",", -1);
+        String action = parts[0].trim().toLowerCase();
+        if (shards.size() == 1 && !action.equals("displayschedule")) {
+            return shards.get(0).send(message);
+        }
+        try {
+            switch (action) {
+                case "add":
+                case "remove":
+                    if (parts.length < 2) {
+                        return shards.get(0).send(message);
+                    }
+                    LocalDate date = LocalDate.parse(parts[1].trim());
+                    for (Shard shard : shards) {
+                        if (shard.owns(date, date)) {
+                            return shard.send(message);
+                        }
+                    }
+                    return "Error: No server owns " + date;
+                case "displayschedule": {
+                    LocalDate from = LocalDate.now().with(DayOfWeek.MONDAY);
+                    LocalDate to = LocalDate.now().with(DayOfWeek.FRIDAY);
+                    if (parts.length >= 3) {
+                        from = LocalDate.parse(parts[1].trim());
+                        to = LocalDate.parse(parts[2].trim());
+                    }
+                    List<String> tables = scatter(from, to, "displayschedule");
+                    return shards.size() == 1 && tables.size() == 1 ? tables.get(0) : mergeSchedules(tables, null);
+                }
+                case "utilization": {
+                    LocalDate from = LocalDate.now().with(DayOfWeek.MONDAY);
+                    LocalDate to = LocalDate.now().with(DayOfWeek.FRIDAY);
+                    if (parts.length >= 3) {
+                        from = LocalDate.parse(parts[1].trim());
+                        to = LocalDate.parse(parts[2].trim());
+                    }
+                    List<String> reports = scatter(from, to, "utilization");
+                    return reports.isEmpty() ? "Error: No server owns " + from + " to " + to : mergeUtilization(from, to, reports);
+                }
+                case "autoschedule": {
+                    if (parts.length < 4) {
+                        return shards.get(0).send(message);
+                    }
+                    return autoSchedule(LocalDate.parse(parts[1].trim()), LocalDate.parse(parts[2].trim()),
+                            message.substring(message.indexOf(',', message.indexOf(',', message.indexOf(',') + 1) + 1) + 1));
+                }
+                case "earlylectures": {
+                    LocalDate from = LocalDate.now().with(DayOfWeek.MONDAY);
+                    LocalDate to = LocalDate.now().with(DayOfWeek.FRIDAY);
+                    return mergeSchedules(scatter(from, to, "earlylectures"), "All lectures shifted to earlier slots where possible.");
+                }
+                default:
+                    return shards.get(0).send(message);
+            }
+        } catch (DateTimeException e) {
+            return "Error: Invalid date in '" + message + "'. Use YYYY-MM-DD";
+        }
+    }
+
+    /**
+     * Asks each server owning part of the range, earliest dates first, to book the earliest free slot in its part.
+     * The first server to book one wins, so the lecture lands on the earliest free slot of the whole range.
+     * Only a Clash (no free slot in that part) moves on to the next server; any other reply, such as an Overloaded
+     * refusal, is returned as it is because a later server could only book a later slot.
+     * @param moduleAndRoom the "module" or "module,room" tail of the autoschedule command.
+     */
+    private String autoSchedule(LocalDate from, LocalDate to, String moduleAndRoom) {
+        List<Shard> inOrder = new ArrayList<>(shards);
+        inOrder.sort(Comparator.comparing(s -> s.from, Comparator.nullsFirst(Comparator.naturalOrder())));
+        String response = "Error: No server owns dates between " + from + " and " + to;
+        for (Shard shard : inOrder) {
+            if (shard.owns(from, to)) {
+                LocalDate start = shard.from == null || from.isAfter(shard.from) ? from : shard.from;
+                LocalDate end = shard.to == null || to.isBefore(shard.to) ? to : shard.to;
+                response = shard.send("autoschedule," + start + "," + end + "," + moduleAndRoom);
+                if (!response.startsWith("Clash")) {
+                    return response;
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Streams the rows of a CSV file (date,time,room,module per line) to the server in one import.
+     * Rows are read and sent one at a time so the file is never held in memory; with several servers
+     * each row goes to the server owning its date over one connection per server.
+     * @return the import report from each server that received rows.
+     */
+    public String importCsv(File file) {
+        Map<Shard, Socket> sockets = new LinkedHashMap<>();
+        Map<Shard, PrintWriter> writers = new LinkedHashMap<>();
+        StringBuilder report = new StringBuilder();
+        try (BufferedReader csv = new BufferedReader(new FileReader(file))) {
+            String row;
+            while ((row = csv.readLine()) != null) {
+                Shard shard = shardForRow(row);
+                PrintWriter out = writers.get(shard);
+                if (out == null) {
+                    //first row for this server, open its import connection
+                    Socket socket = new Socket(shard.host, shard.port);
+                    sockets.put(shard, socket);
+                    out = new PrintWriter(socket.getOutputStream(), false);
+                    out.println("import");
+                    writers.put(shard, out);
+                }
+                out.println(row);
+            }
+            //finish every import and collect the reports
+            for (Map.Entry<Shard, PrintWriter> entry : writers.entrySet()) {
+                entry.getValue().println("END");
+                entry.getValue().flush();
+                BufferedReader in = new BufferedReader(new InputStreamReader(sockets.get(entry.getKey()).getInputStream()));
+                if (shards.size() > 1) {
+                    report.append(entry.getKey().host).append(":").append(entry.getKey().port).append(" - ");
+                }
+                String line;
+                while ((line = in.readLine()) != null) {
+                    report.append(line).append("\n");
                 }
             }
         } catch (IOException e) {
-            return "Connection error: " + e.getMessage();
+            report.append("Connection error: ").append(e.getMessage());
+        } finally {
+            for (Socket socket : sockets.values()) {
+                try {
+                    socket.close();
+                } catch (IOException ignore) {}
+            }
+        }
+        if (writers.isEmpty() && report.length() == 0) {
+            return "Nothing to import: " + file.getName() + " is empty.";
+        }
+        return report.toString().trim();
+    }
+
+    //server owning the date at the start of a CSV row, rows with no readable date go to the first server which reports them
+    private Shard shardForRow(String row) {
+        if (shards.size() > 1) {
+            try {
+                LocalDate date = LocalDate.parse(row.split(",", 2)[0].trim());
+                for (Shard shard : shards) {
+                    if (shard.owns(date, date)) {
+                        return shard;
+                    }
+                }
+            } catch (DateTimeException ignore) {}
+        }
+        return shards.get(0);
+    }
+
+    /**
+     * Subscribes to changes between two dates on every server owning part of the range.
+     * Each line pushed by a server (SUBSCRIBED, EVENT or HEARTBEAT) is passed to the listener on a
+     * background thread, followed by CLOSED when that server's connection ends.
+     * @return the open subscription, close it to stop receiving changes.
+     */
+    public Subscription subscribe(LocalDate from, LocalDate to, Consumer<String> listener) {
+        Subscription subscription = new Subscription();
+        for (Shard shard : shards) {
+            if (shard.owns(from, to)) {
+                LocalDate start = shard.from == null || from.isAfter(shard.from) ? from : shard.from;
+                LocalDate end = shard.to == null || to.isBefore(shard.to) ? to : shard.to;
+                subscription.open(shard, "subscribe," + start + "," + end, listener);
+            }
+        }
+        return subscription;
+    }
+
+    //sends a command to every shard overlapping the range in parallel, a range query is narrowed to the part each shard owns
+    private List<String> scatter(LocalDate from, LocalDate to, String action) {
+        List<CompletableFuture<String>> pending = new ArrayList<>();
+        for (Shard shard : shards) {
+            if (shard.owns(from, to)) {
+                String request = action;
+                if (action.equals("displayschedule") || action.equals("utilization")) {
+                    LocalDate start = shard.from == null || from.isAfter(shard.from) ? from : shard.from;
+                    LocalDate end = shard.to == null || to.isBefore(shard.to) ? to : shard.to;
+                    request = action + "," + start + "," + end;
+                    if (action.equals("utilization")) {
+                        request += ",counts";  //raw counts so the shards' figures can be added up
+                    }
+                }
+                final String shardRequest = request;
+                if (action.equals("displayschedule")) {
+                    pending.add(CompletableFuture.supplyAsync(() -> fetchCached(shard, shardRequest)));
+                } else {
+                    pending.add(CompletableFuture.supplyAsync(() -> shard.send(shardRequest)));
+                }
+            }
+        }
+        List<String> responses = new ArrayList<>();
+        for (CompletableFuture<String> future : pending) {
+            responses.add(future.join());
+        }
+        return responses;
+    }
+
+    /**
+     * Sends a read request as "ifchanged,etag,request" carrying the ETag of the copy cached from an earlier reply.
+     * The server answers NOTMODIFIED if nothing in the range changed since, and the cached table is returned
+     * without it being sent again, otherwise it answers VERSION with a new ETag and the table, which is cached.
+     * Servers without the ifchanged command are sent the plain request.
+     */
+    private String fetchCached(Shard shard, String request) {
+        String cacheKey = shard.host + ":" + shard.port + "|" + request;
+        String[] cached;
+        synchronized (tableCache) {
+            cached = tableCache.get(cacheKey);
+        }
+        String response = shard.send("ifchanged," + (cached == null ? "" : cached[0]) + "," + request);
+        if (response.startsWith("NOTMODIFIED,") && cached != null) {
+            return cached[1];
+        }
+        if (response.startsWith("VERSION,")) {
+            int newline = response.indexOf('\n');
+            String etag = newline < 0 ? response.substring(8) : response.substring(8, newline);
+            String table = newline < 0 ? "" : response.substring(newline + 1);
+            synchronized (tableCache) {
+                tableCache.put(cacheKey, new String[] {etag, table});
+            }
+            return table;
+        }
+        if (response.startsWith("Exception: Unsupported action")) {
+            return shard.send(request);
+        }
+        return response;
+    }
+
+    /**
+     * Merges schedule tables from several shards into one table sorted by date and time.
+     * Errors and Overloaded refusals from any shard are kept below the table so a missing shard is visible to the user,
+     * and the title is then left out as the request did not fully succeed.
+     */
+    private String mergeSchedules(List<String> responses, String title) {
+        TreeSet<String> rows = new TreeSet<>();
+        StringBuilder errors = new StringBuilder();
+        boolean anyTable = false;
+        for (String response : responses) {
+            for (String line : response.split("\n")) {
+                if (line.startsWith("Week Schedule:") || line.equals(TABLE_HEADER)) {
+                    anyTable = true;
+                } else if (line.length() > 10 && line.charAt(4) == '-' && line.contains(" | ")) {
+                    rows.add(line);
+                } else if (line.startsWith("Error") || line.startsWith("Connection error") || line.startsWith("Overloaded")) {
+                    errors.append(line).append("\n");
+                }
+            }
+        }
+        StringBuilder merged = new StringBuilder();
+        if (title != null && errors.length() == 0) {
+            merged.append(title).append("\n");
+        }
+        if (anyTable) {
+            merged.append("Week Schedule:\n").append(TABLE_HEADER).append("\n");
+            for (String row : rows) {
+                merged.append(row).append("\n");
+            }
+        } else {
+            merged.append("No scheduled lectures.\n");
+        }
+        merged.append(errors);
+        return merged.toString().trim();
+    }
+
+    /**
+     * Adds up the raw utilization counts of several shards (see the server's utilization,from,to,counts) into one
+     * report laid out like a single server's. Shards own different dates so no day is reported twice and every
+     * other figure is a sum. Replies that are not counts, such as errors or Overloaded refusals, are kept below it.
+     */
+    private String mergeUtilization(LocalDate from, LocalDate to, List<String> responses) {
+        Map<String, Integer> days = new TreeMap<>();  //"YYYY-MM-DD" to booked slots
+        int[] hours = new int[9];                     //lectures at 09:00 + h in the range
+        int[] allHours = new int[9];                  //lectures at 09:00 + h over all dates
+        Map<String, Integer> rooms = new HashMap<>();
+        Map<String, Integer> modules = new HashMap<>();
+        StringBuilder errors = new StringBuilder();
+        for (String response : responses) {
+            if (!response.startsWith("UTILIZATION,")) {
+                errors.append(response).append("\n");
+                continue;
+            }
+            for (String line : response.split("\n")) {
+                String[] fields = line.split(",");
+                switch (fields[0]) {
+                    case "DAY":
+                        days.merge(fields[1], Integer.parseInt(fields[2]), Integer::sum);
+                        break;
+                    case "HOURS":
+                    case "ALLHOURS":
+                        int[] target = fields[0].equals("HOURS") ? hours : allHours;
+                        for (int h = 0; h < target.length && h + 1 < fields.length; h++) {
+                            target[h] += Integer.parseInt(fields[h + 1]);
+                        }
+                        break;
+                    case "ROOM":
+                        rooms.merge(fields[1], Integer.parseInt(fields[2]), Integer::sum);
+                        break;
+                    case "MODULE":
+                        modules.merge(fields[1], Integer.parseInt(fields[2]), Integer::sum);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        StringBuilder sb = new StringBuilder("Utilization " + from + " to " + to + ":\nDATE       | SLOTS | USED\n");
+        //week's Monday to its booked and available slot counts
+        Map<LocalDate, int[]> weeks = new TreeMap<>();
+        for (Map.Entry<String, Integer> day : days.entrySet()) {
+            int booked = day.getValue();
+            int[] week = weeks.computeIfAbsent(LocalDate.parse(day.getKey()).with(DayOfWeek.MONDAY), monday -> new int[2]);
+            week[0] += booked;
+            week[1] += 9;
+            sb.append(day.getKey()).append(" | ").append(booked).append("/9   | ").append(percent(booked, 9)).append("\n");
+        }
+        int booked = 0;
+        int available = 0;
+        for (Map.Entry<LocalDate, int[]> week : weeks.entrySet()) {
+            booked += week.getValue()[0];
+            available += week.getValue()[1];
+            if (weeks.size() > 1) {
+                sb.append("Week of ").append(week.getKey()).append(": ").append(week.getValue()[0]).append("/")
+                  .append(week.getValue()[1]).append(" slots, ").append(percent(week.getValue()[0], week.getValue()[1])).append("\n");
+            }
+        }
+        sb.append("Total: ").append(booked).append("/").append(available).append(" slots, ").append(percent(booked, available)).append("\n");
+        sb.append("Peak hours: ").append(peakHours(hours)).append("\n");
+        sb.append("Peak hours (all dates): ").append(peakHours(allHours)).append("\n");
+        sb.append("Rooms: ").append(rankCounts(rooms)).append("\n");
+        sb.append("Modules: ").append(rankCounts(modules)).append("\n");
+        sb.append(errors);
+        return sb.toString().trim();
+    }
+
+    private static String percent(int part, int whole) {
+        return (whole == 0 ? 0 : part * 100 / whole) + "%";
+    }
+
+    //the busiest hourly slots with their lecture count, or "none" if no slot is booked
+    private static String peakHours(int[] lecturesPerHour) {
+        int most = 0;
+        for (int count : lecturesPerHour) {
+            most = Math.max(most, count);
+        }
+        if (most == 0) {
+            return "none";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int h = 0; h < lecturesPerHour.length; h++) {
+            if (lecturesPerHour[h] == most) {
+                sb.append(sb.length() == 0 ? "" : ", ").append(h == 0 ? "09" : String.valueOf(9 + h)).append(":00");
+            }
+        }
+        return sb.append(" (").append(most).append(most == 1 ? " lecture)" : " lectures)").toString();
+    }
+
+    //"name count" pairs, most lectures first, or "none" if there are none
+    private static String rankCounts(Map<String, Integer> counts) {
+        if (counts.isEmpty()) {
+            return "none";
+        }
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(counts.entrySet());
+        ranked.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : ranked) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(entry.getKey()).append(" ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /** Persistent connections pushing schedule changes, one per server in the subscribed range. */
+    public static class Subscription {
+        private final List<Socket> sockets = new ArrayList<>();
+        private volatile boolean closed = false;
+
+        //connects to one server and reads its pushed lines on a daemon thread until the connection ends
+        private void open(Shard shard, String request, Consumer<String> listener) {
+            Thread reader = new Thread(() -> {
+                try (
+                    Socket socket = new Socket(shard.host, shard.port);
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                    PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
+                ) {
+                    synchronized (sockets) {
+                        if (closed) {
+                            return;
+                        }
+                        sockets.add(socket);
+                    }
+                    out.println(request);
+                    String line;
+                    while ((line = in.readLine()) != null) {
+                        listener.accept(line);
+                    }
+                } catch (IOException e) {
+                    if (!closed) {
+                        listener.accept("Connection error: " + e.getMessage());
+                    }
+                }
+                //a subscription closed by the client says nothing more, only one the server ended reports CLOSED
+                if (!closed) {
+                    listener.accept("CLOSED");
+                }
+            });
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        //closes every connection of this subscription
+        public void close() {
+            synchronized (sockets) {
+                closed = true;
+                for (Socket socket : sockets) {
+                    try {
+                        socket.close();
+                    } catch (IOException ignore) {}
+                }
+                sockets.clear();
+            }
+        }
+    }
+
+    /** One server and the date range it owns. */
+    private static class Shard {
+        private final LocalDate from;  //null if unbounded
+        private final LocalDate to;    //null if unbounded
+        private final String host;
+        private final int port;
+
+        //parses "from..to=host:port"
+        Shard(String entry) {
+            String[] rangeAndAddress = entry.split("=", 2);
+            String[] range = rangeAndAddress[0].split("\\.\\.", -1);
+            from = range[0].isBlank() ? null : LocalDate.parse(range[0].trim());
+            to = range.length < 2 || range[1].isBlank() ? null : LocalDate.parse(range[1].trim());
+            String[] address = rangeAndAddress[rangeAndAddress.length - 1].split(":");
+            host = address[0].trim();
+            port = address.length > 1 ? Integer.parseInt(address[1].trim()) : PORT;
+        }
+
+        //true when this shard owns any date between start and end inclusive
+        boolean owns(LocalDate start, LocalDate end) {
+            return (from == null || !end.isBefore(from)) && (to == null || !start.isAfter(to));
+        }
+
+        /**
+         * Sends a request message to this server and returns the server's response.
+         * Opens a new TCP connection for the request and closes it after the response is received.
+         */
+        String send(String message) {
+            StringBuilder response = new StringBuilder();
+            try (
+                Socket socket = new Socket(host, port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
+            ) {
+                //send the request to the server
+                out.println(message);
+                //read all response lines from the server until the connection is closed or a terminate signal is received
+                String line;
+                while ((line = in.readLine()) != null) {
+                    response.append(line).append("\n");
+                    //if the server signals termination break out
+                    if (line.contains("TERMINATE")) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                return "Connection error: " + e.getMessage();
+            }
+            return response.toString().trim();
         }
-        return response.toString().trim();
     }
 }
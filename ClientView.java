@@ -14,6 +14,8 @@ import javafx.scene.layout.VBox;
 import javafx.util.Callback;
 import java.time.DayOfWeek;
 import java.time.LocalDate;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  *
@@ -37,9 +39,16 @@ public class ClientView {
     public Button earlyButton = new Button("Early Lectures");
     public Button otherButton = new Button("Other");
     public Button stopButton = new Button("Stop");
+    public Button liveButton = new Button("Live View");
+    public Button importButton = new Button("Import CSV");
+    public Button autoButton = new Button("Auto Schedule");
+    public Button utilizationButton = new Button("Utilization");
     //area to display server responses
     public TextArea responseArea = new TextArea();
     private Scene scene;
+    //local copy of the subscribed range kept up to date from pushed changes: key "YYYY-MM-DD hh:mm", value "Room | Module"
+    private final Map<String, String> liveSchedule = new TreeMap<>();
+    private String liveTitle = "";
 
     public ClientView() {
         //initialize all inputs with default controls
@@ -74,14 +83,17 @@ public class ClientView {
         //arrange buttons in a horizontal box
         HBox buttonBox = new HBox(10, addButton, removeButton, displayButton, earlyButton, otherButton); // [MODIFIED] added otherButton to button bar
         buttonBox.setAlignment(Pos.CENTER);
+        //second row for tools working on a whole range of dates
+        HBox toolBox = new HBox(10, liveButton, importButton, autoButton, utilizationButton);
+        toolBox.setAlignment(Pos.CENTER);
         stopButton.setMaxWidth(Double.MAX_VALUE);
         //use a vertical layout for buttons, input form, stop button, and response area
-        VBox mainLayout = new VBox(15, buttonBox, inputGrid, stopButton, responseArea);
+        VBox mainLayout = new VBox(15, buttonBox, toolBox, inputGrid, stopButton, responseArea);
         mainLayout.setPadding(new Insets(15));
 
         //styles for a nicer UI
         mainLayout.setStyle("-fx-background-color: #E8F6F3;");  //background color
-        for (Button btn : new Button[]{addButton, removeButton, displayButton, earlyButton, otherButton, stopButton}) { // [MODIFIED] added otherButton to style loop
+        for (Button btn : new Button[]{addButton, removeButton, displayButton, earlyButton, otherButton, stopButton, liveButton, importButton, autoButton, utilizationButton}) { // [MODIFIED] added otherButton to style loop
             btn.setStyle("-fx-background-color: #005335; -fx-text-fill: white;");
         }
         for (Label lbl : new Label[]{dateLabel, timeLabel, roomLabel, moduleLabel}) {
@@ -107,6 +119,51 @@ public class ClientView {
         };
     }
 
+    //empties the live schedule and shows its title, called when a new subscription starts
+    public void clearLiveSchedule(String title) {
+        liveSchedule.clear();
+        liveTitle = title;
+        renderLiveSchedule();
+    }
+
+    /**
+     * Applies one pushed change to the live schedule and redraws it. Must be called on the JavaFX thread.
+     * Lines are EVENT,ADD|REMOVE,date,time,room,module or EVENT,MOVE,date,fromTime,toTime,room,module,
+     * anything else such as SUBSCRIBED or HEARTBEAT leaves the schedule unchanged.
+     */
+    public void applyScheduleEvent(String line) {
+        String[] parts = line.split(",", -1);
+        if (!parts[0].equals("EVENT") || parts.length < 6) {
+            return;
+        }
+        String date = parts[2];
+        switch (parts[1]) {
+            case "ADD":
+                liveSchedule.put(date + " " + parts[3], parts[4] + " | " + parts[5]);
+                break;
+            case "REMOVE":
+                liveSchedule.remove(date + " " + parts[3]);
+                break;
+            case "MOVE":
+                liveSchedule.remove(date + " " + parts[3]);
+                liveSchedule.put(date + " " + parts[4], parts[5] + " | " + parts[6]);
+                break;
+            default:
+                return;
+        }
+        renderLiveSchedule();
+    }
+
+    //draws the live schedule in the response area in the same table layout as the server's schedule
+    private void renderLiveSchedule() {
+        StringBuilder sb = new StringBuilder(liveTitle).append("\nDATE       | TIME  | ROOM   | MODULE\n");
+        for (Map.Entry<String, String> entry : liveSchedule.entrySet()) {
+            String key = entry.getKey();
+            sb.append(key, 0, 10).append(" | ").append(key, 11, key.length()).append(" | ").append(entry.getValue()).append("\n");
+        }
+        responseArea.setText(sb.toString().trim());
+    }
+
     //returns the main scene for the client UI
     public Scene getScene() {
         return scene;
@@ -0,0 +1,201 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.server;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ *
+ * @author hsamp
+ */
+
+/**
+ * Protects the server from slow or stalled clients. A wait for input with nothing arriving is ended by the socket's
+ * read timeout. Each connection's output stream is wrapped so the time of any write it is blocked in is known, and a
+ * background thread closes connections that have been stuck for too long: a write the client is not reading, or a
+ * request line that is still incomplete long after it started (a client trickling one byte at a time, which the read
+ * timeout alone never catches). Closing the socket wakes the blocked handler thread with an IOException so it ends normally.
+ * The timeouts are read from system properties and each kind of reaped connection is counted.
+ */
+class ConnectionReaper {
+    static final int READ_TIMEOUT_MILLIS = Integer.getInteger("scheduler.readTimeoutMillis", 10000);       //longest wait for one read
+    static final int WRITE_TIMEOUT_MILLIS = Integer.getInteger("scheduler.writeTimeoutMillis", 10000);     //longest blocked write
+    static final int REQUEST_TIMEOUT_MILLIS = Integer.getInteger("scheduler.requestTimeoutMillis", 15000); //longest time to send a whole request line or import row
+    static final int IMPORT_TIMEOUT_MILLIS = Integer.getInteger("scheduler.importTimeoutMillis", 600000);  //longest time to send a whole import
+    static final int MAX_REQUEST_BYTES = Integer.getInteger("scheduler.maxRequestBytes", 4096);           //longest request or import row
+    private static final long CHECK_MILLIS = 1000;  //how often stalled connections are looked for
+
+    private final Set<Tracked> connections = ConcurrentHashMap.newKeySet();
+    private final Consumer<String> log;
+    private volatile boolean running = false;
+
+    //counters for the status command
+    private final AtomicLong readTimeouts = new AtomicLong();
+    private final AtomicLong writeTimeouts = new AtomicLong();
+    private final AtomicLong slowRequests = new AtomicLong();
+    private final AtomicLong oversizeRequests = new AtomicLong();
+
+    ConnectionReaper(Consumer<String> log) {
+        this.log = log;
+    }
+
+    //starts the background thread checking for stalled connections
+    void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        Thread reaperThread = new Thread(() -> {
+            while (running) {
+                try {
+                    Thread.sleep(CHECK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                reapStalled();
+            }
+        });
+        reaperThread.setDaemon(true);
+        reaperThread.start();
+    }
+
+    //stops the background thread, connections still open are left to finish
+    void stop() {
+        running = false;
+    }
+
+    /**
+     * Sets the socket's read timeout and starts tracking the connection.
+     * The returned handle's streams must be used for all reads and writes on the socket.
+     */
+    Tracked register(Socket socket, String clientName) throws IOException {
+        socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+        Tracked tracked = new Tracked(socket, clientName);
+        connections.add(tracked);
+        return tracked;
+    }
+
+    //stops tracking a connection once its handler has finished
+    void unregister(Tracked tracked) {
+        connections.remove(tracked);
+    }
+
+    //a blocking read gave up after READ_TIMEOUT_MILLIS
+    void countReadTimeout() {
+        readTimeouts.incrementAndGet();
+    }
+
+    //a request line or import row was longer than MAX_REQUEST_BYTES
+    void countOversize() {
+        oversizeRequests.incrementAndGet();
+    }
+
+    String stats() {
+        return "read timeouts " + readTimeouts.get() + ", write timeouts " + writeTimeouts.get()
+                + ", slow requests " + slowRequests.get()
+                + ", oversize requests " + oversizeRequests.get() + ", open " + connections.size();
+    }
+
+    //closes every connection stuck past one of the limits
+    private void reapStalled() {
+        long now = System.nanoTime();
+        for (Tracked tracked : connections) {
+            long writingSince = tracked.writingSince;
+            long requestDeadline = tracked.requestDeadline;
+            if (writingSince != 0 && now - writingSince > WRITE_TIMEOUT_MILLIS * 1_000_000L) {
+                writeTimeouts.incrementAndGet();
+                reap(tracked, "not reading its responses");
+            } else if (requestDeadline != 0 && now > requestDeadline) {
+                slowRequests.incrementAndGet();
+                reap(tracked, "too slow sending its request");
+            }
+        }
+    }
+
+    private void reap(Tracked tracked, String reason) {
+        connections.remove(tracked);
+        try {
+            tracked.socket.close();
+        } catch (IOException ignore) {}
+        log.accept("Closed stalled connection " + tracked.clientName + ": " + reason);
+    }
+
+    /** One tracked connection: its socket, its input and an output stream that records when a write is blocked. */
+    static class Tracked {
+        private final Socket socket;
+        private final String clientName;
+        private final InputStream input;
+        private final OutputStream output;
+        private volatile long writingSince = 0;      //nanoTime a blocked write began, 0 when not writing
+        private volatile long requestDeadline = 0;   //nanoTime the current request line must be complete by, 0 for none
+
+        Tracked(Socket socket, String clientName) throws IOException {
+            this.socket = socket;
+            this.clientName = clientName;
+            this.input = socket.getInputStream();  //waits for input are limited by the socket's read timeout
+            this.output = new FilterOutputStream(socket.getOutputStream()) {
+                @Override
+                public void write(int b) throws IOException {
+                    writingSince = System.nanoTime();
+                    try {
+                        super.write(b);
+                    } finally {
+                        writingSince = 0;
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    writingSince = System.nanoTime();
+                    try {
+                        out.write(b, off, len);  //the wrapped socket stream
+                    } finally {
+                        writingSince = 0;
+                    }
+                }
+            };
+        }
+
+        String clientName() {
+            return clientName;
+        }
+
+        //address of the client, used for its rate limits
+        String address() {
+            return socket.getInetAddress().getHostAddress();
+        }
+
+        InputStream in() {
+            return input;
+        }
+
+        OutputStream out() {
+            return output;
+        }
+
+        //the next request line must arrive within REQUEST_TIMEOUT_MILLIS
+        void startRequest() {
+            requestDeadline = System.nanoTime() + REQUEST_TIMEOUT_MILLIS * 1_000_000L;
+        }
+
+        //the next line must arrive within REQUEST_TIMEOUT_MILLIS and by the nanoTime latestNanos, whichever comes first
+        void startRequest(long latestNanos) {
+            requestDeadline = Math.min(System.nanoTime() + REQUEST_TIMEOUT_MILLIS * 1_000_000L, latestNanos);
+        }
+
+        //the line has arrived
+        void requestRead() {
+            requestDeadline = 0;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package com.mycompany.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ *
+ * @author hsamp
+ */
+
+/**
+ * One request line read straight from a client's socket into a reusable byte buffer.
+ * The line is split into comma separated fields by recording where each field starts and ends
+ * (with surrounding spaces left out) instead of copying it into new strings, so reading, matching
+ * the action and parsing dates and times allocates nothing. A String is only made when a field's
+ * text is actually needed, e.g. for a room name or a response message.
+ * One Request is kept per connection and reused for every line read on it.
+ */
+class Request {
+    private static final int MAX_FIELDS = 8;  //more fields than any command uses, extra commas are kept in the last field
+
+    private byte[] line = new byte[128];
+    private int length = 0;
+    private final int[] start = new int[MAX_FIELDS];
+    private final int[] end = new int[MAX_FIELDS];
+    private int fieldCount = 0;
+
+    /**
+     * Reads the next line from the stream into this request and splits it into fields.
+     * The line ends at \n, and a \r before it is dropped.
+     * @return false if the stream ended before any byte of a new line was read.
+     * @throws TooLongException if the line is longer than maxBytes, the rest of it is left unread.
+     */
+    boolean readLine(InputStream in, int maxBytes) throws IOException {
+        length = 0;
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            if (length == maxBytes) {
+                throw new TooLongException(maxBytes);
+            }
+            if (length == line.length) {
+                byte[] bigger = new byte[Math.min(line.length * 2, maxBytes)];
+                System.arraycopy(line, 0, bigger, 0, length);
+                line = bigger;
+            }
+            line[length++] = (byte) b;
+        }
+        if (b == -1 && length == 0) {
+            return false;
+        }
+        if (length > 0 && line[length - 1] == '\r') {
+            length--;
+        }
+        split();
+        return true;
+    }
+
+    /**
+     * Discards the rest of a line left unread by a TooLongException, up to and including its \n.
+     * @return false if the stream ended first.
+     */
+    static boolean skipLine(InputStream in) throws IOException {
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //records the trimmed bounds of each comma separated field
+    private void split() {
+        fieldCount = 0;
+        int fieldStart = 0;
+        for (int i = 0; i <= length; i++) {
+            boolean lastField = fieldCount == MAX_FIELDS - 1;
+            if (i == length || (line[i] == ',' && !lastField)) {
+                int s = fieldStart;
+                int e = i;
+                while (s < e && line[s] <= ' ') {
+                    s++;
+                }
+                while (e > s && line[e - 1] <= ' ') {
+                    e--;
+                }
+                start[fieldCount] = s;
+                end[fieldCount] = e;
+                fieldCount++;
+                fieldStart = i + 1;
+            }
+        }
+    }
+
+    //number of fields in the line, a blank line has one empty field
+    int fieldCount() {
+        return fieldCount;
+    }
+
+    //true when the line has no text other than spaces
+    boolean isBlank() {
+        return fieldCount == 1 && start[0] == end[0];
+    }
+
+    //true when field i is the given lower case ASCII word, ignoring the case of the field
+    boolean fieldEquals(int i, byte[] lowerCaseWord) {
+        if (i >= fieldCount || end[i] - start[i] != lowerCaseWord.length) {
+            return false;
+        }
+        for (int j = 0; j < lowerCaseWord.length; j++) {
+            int b = line[start[i] + j];
+            if (b >= 'A' && b <= 'Z') {
+                b += 'a' - 'A';
+            }
+            if (b != lowerCaseWord[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //true when field i is present and not empty
+    boolean hasField(int i) {
+        return i < fieldCount && end[i] > start[i];
+    }
+
+    //text of field i, or an empty string if the line has fewer fields
+    String field(int i) {
+        if (i >= fieldCount) {
+            return "";
+        }
+        return new String(line, start[i], end[i] - start[i], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses field i as a "YYYY-MM-DD" date.
+     * @return the day number counted from 1970-01-01 (as LocalDate.toEpochDay), or Long.MIN_VALUE if it is not a valid date.
+     */
+    long date(int i) {
+        if (i >= fieldCount || end[i] - start[i] != 10) {
+            return Long.MIN_VALUE;
+        }
+        int p = start[i];
+        if (line[p + 4] != '-' || line[p + 7] != '-') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(p, 4);
+        int month = digits(p + 5, 2);
+        int day = digits(p + 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month)) {
+            return Long.MIN_VALUE;
+        }
+        return epochDay(year, month, day);
+    }
+
+    /**
+     * Parses field i as an "hh:mm" time.
+     * @return minutes since midnight, or -1 if it is not a valid time.
+     */
+    int time(int i) {
+        if (i >= fieldCount || end[i] - start[i] != 5 || line[start[i] + 2] != ':') {
+            return -1;
+        }
+        int hour = digits(start[i], 2);
+        int minute = digits(start[i] + 3, 2);
+        if (hour < 0 || hour > 23 || minute < 0 || minute > 59) {
+            return -1;
+        }
+        return hour * 60 + minute;
+    }
+
+    /**
+     * Builds the schedule key "YYYY-MM-DD hh:mm" from a date field and a time field.
+     * Both fields must already have passed date() and time() so they are in that exact layout.
+     */
+    String slotKey(int dateField, int timeField) {
+        byte[] key = new byte[16];
+        System.arraycopy(line, start[dateField], key, 0, 10);
+        key[10] = ' ';
+        System.arraycopy(line, start[timeField], key, 11, 5);
+        return new String(key, StandardCharsets.ISO_8859_1);
+    }
+
+    //the whole line as received, used for logging and forwarding
+    @Override
+    public String toString() {
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+    }
+
+    //value of count decimal digits starting at position p, or -1 if any of them is not a digit
+    private int digits(int p, int count) {
+        int value = 0;
+        for (int j = p; j < p + count; j++) {
+            int d = line[j] - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    static int daysInMonth(int year, int month) {
+        if (month == 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            return leap ? 29 : 28;
+        }
+        return (month == 4 || month == 6 || month == 9 || month == 11) ? 30 : 31;
+    }
+
+    //same calculation as LocalDate.toEpochDay without creating a LocalDate
+    static long epochDay(int year, int month, int day) {
+        long y = year;
+        long total = 365 * y;
+        total += (y + 3) / 4 - (y + 99) / 100 + (y + 399) / 400;
+        total += (367 * month - 362) / 12;
+        total += day - 1;
+        if (month > 2) {
+            boolean leap = (year % 4 == 0 && year % 100 != 0) || year % 400 == 0;
+            total -= leap ? 1 : 2;
+        }
+        return total - 719528;  //days from year 0 to 1970
+    }
+
+    /** Thrown when a client sends a line longer than the server accepts. */
+    static class TooLongException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        TooLongException(int maxBytes) {
+            super("Request longer than " + maxBytes + " bytes");
+        }
+    }
+}
@@ -7,14 +7,26 @@ package com.mycompany.server;
 import javafx.concurrent.Task;
 import javafx.application.Platform;
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.time.*;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
+import com.mycompany.server.AdmissionControl.CommandClass;
+import static com.mycompany.server.AdmissionControl.CommandClass.*;
 
 /**
  *
@@ -25,24 +37,104 @@ import java.util.function.Consumer;
  * Model class for the server side of Lecture Scheduler.
  * Manages the lecture schedule data and handles network connections.
  * It spawns a thread to listen for client connections and creates a new thread per client.
- * All modifications to the shared schedule (a HashMap) are synchronized to prevent race conditions.
+ * All modifications to the shared schedule (a TreeMap sorted by date and time) are synchronized to prevent race conditions.
  * Also provides the "early lectures" feature which shifts lectures earlier in the day if possible, 
  * using a separate thread for each weekday (divide-and-conquer approach).
+ * A server runs either as the primary, which owns the schedule and its CSV files, or as a read only
+ * follower (system property scheduler.primary=host:port) which tails the primary's mutation stream,
+ * answers reads from its own copy and forwards writes to the primary.
+ * Several servers can also split the schedule between them by date range (system property
+ * scheduler.shard=from..to), each one only accepting lectures on dates it owns.
  */
 public class ServerModel {
-    private static final int PORT = 1234;
-    private final Map<String, String> schedule = new HashMap<>();  //shared lecture schedule: key "YYYY-MM-DD hh:mm", value "Room,Module"
+    private static final int PORT = Integer.getInteger("scheduler.port", 1234);
+    //"host:port" of the primary when this process is a follower, null when this process is the primary
+    private static final String PRIMARY = System.getProperty("scheduler.primary");
+    //addresses of followers trusted to name the client a forwarded write came from, as "address,address"
+    private static final Set<String> FOLLOWERS = new HashSet<>(Arrays.asList(System.getProperty("scheduler.followers", "").split("\\s*,\\s*")));
+    private static final int STREAM_QUEUE_CAPACITY = 10000;  //mutations buffered per stream before a slow reader is cut off
+    private static final long HEARTBEAT_MILLIS = 1000;       //idle streams send a heartbeat this often so followers can measure lag
+    private static final long RECONNECT_MILLIS = 2000;       //follower wait before reconnecting to the primary
+    private static final int FORWARD_TIMEOUT_MILLIS = Integer.getInteger("scheduler.forwardTimeoutMillis", 10000);  //longest connect or wait for a reply when forwarding to the primary
+    private static final int IMPORT_BATCH_SIZE = 500;        //imported rows applied and saved together
+    private static final int IMPORT_MAX_DETAILS = 20;        //rejected rows described individually in an import report
+    private static final byte[] END = "end".getBytes();        //line ending an import
+    private static final byte[] DISPLAY_SCHEDULE = "displayschedule".getBytes();
+    private static final byte[] FORWARDED_FOR = "forwardedfor".getBytes();
+    private static final byte[] COUNTS = "counts".getBytes();
+    private static final int FULL_DAY = (1 << 9) - 1;          //occupancy mask with all nine hourly slots 09:00-17:00 taken
+    private static final String UNASSIGNED_ROOM = "TBA";        //room booked by autoschedule when the client names none
+    private static final int MAX_UTILIZATION_DAYS = 366;         //longest range one utilization request may cover
+    private static final int MAX_CONNECTIONS = Integer.getInteger("scheduler.maxConnections", 256);  //open connections before new ones are turned away
+    private static final String SCHEDULE_FILE = System.getProperty("scheduler.file", "SCHEDULE.csv");  //single file used before segments, migrated on first start
+    //directory of per day segment files "YYYY-MM-DD.csv", each holding that day's date,time,room,module rows
+    private static final String SEGMENT_DIR = System.getProperty("scheduler.dir", segmentDirFor(SCHEDULE_FILE));
+    //dates owned by this shard as "from..to" (either side may be left empty), unset means every date
+    private static final String SHARD = System.getProperty("scheduler.shard", "..");
+    //shared lecture schedule: key "YYYY-MM-DD hh:mm", value "Room,Module"
+    //kept sorted so the keys for a date range are one contiguous sub map
+    private final NavigableMap<String, String> schedule = new TreeMap<>();
+    private final LocalDate shardFrom;  //first date owned by this server, null if unbounded
+    private final LocalDate shardTo;    //last date owned by this server, null if unbounded
+    //"YYYY-MM-DD" days changed since their segment file was last written, guarded by the schedule lock
+    private final Set<String> dirtyDays = new TreeSet<>();
+    //occupancy index: day number (from 1970-01-01) to a mask with bit h set when the hourly slot at 09:00 + h is booked
+    private final Map<Long, Integer> occupancy = new HashMap<>();
+    //lecture counts kept in step by indexLecture for utilization: per day number, upper cased room or module name to its
+    //lectures that day, and per hourly slot over the whole schedule
+    private final Map<Long, Map<String, Integer>> roomsByDay = new HashMap<>();
+    private final Map<Long, Map<String, Integer>> modulesByDay = new HashMap<>();
+    private final int[] hourLectures = new int[9];  //index h counts lectures at 09:00 + h
+    //sequence number of the last change to each "YYYY-MM-DD" day, the version a range's ETag is built from
+    private final NavigableMap<String, Long> dayVersions = new TreeMap<>();
+    //identifies this run of the server in ETags as sequence numbers start again from 0 on every start
+    private final String instanceId = Long.toString(System.currentTimeMillis(), 36);
     private ServerSocket serverSocket;
     private volatile boolean running = false;      //server running flag for the accept loop
     private Consumer<String> logCallback;          //callback to send log messages to the UI
     private final AtomicInteger clientCount = new AtomicInteger(0);  //counter to label client threads
+    private final Command[] commands = buildCommands();  //command table, looked up by action for every request
+    private final AdmissionControl admission = new AdmissionControl();  //rate limits and overload shedding
+    private final AtomicInteger openConnections = new AtomicInteger(0);
+    private final ConnectionReaper reaper = new ConnectionReaper(this::serverMessage);  //timeouts for slow or stalled clients
+
+    //replication state: every change to the schedule gets a sequence number and is handed to each open stream
+    private long sequence = 0;                     //last mutation sequence number, guarded by the schedule lock
+    private final List<MutationStream> streams = new CopyOnWriteArrayList<>();
+    //follower side: primary sequence last applied, primary sequence last seen and when the last line arrived
+    private volatile long appliedSequence = 0;
+    private volatile long primarySequence = 0;
+    private volatile long lastPrimaryMillis = 0;
+    private volatile long replicationLagMillis = 0;
 
     //date formatter for schedule keys (dates in "YYYY-MM-DD" format)
     private final DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
 
     public ServerModel() {
-        //load initial schedule data from CSV file into the HashMap
-        loadScheduleCSV();
+        String[] shardRange = SHARD.split("\\.\\.", -1);
+        shardFrom = shardRange[0].isBlank() ? null : LocalDate.parse(shardRange[0].trim());
+        shardTo = shardRange.length < 2 || shardRange[1].isBlank() ? null : LocalDate.parse(shardRange[1].trim());
+        //load initial schedule data from CSV file into the schedule map, a follower gets its copy from the primary instead
+        if (!isFollower()) {
+            loadScheduleCSV();
+        }
+    }
+
+    //true when this server is a read only follower of another server
+    public boolean isFollower() {
+        return PRIMARY != null && !PRIMARY.isBlank();
+    }
+
+    //true when the day (counted from 1970-01-01) falls inside the range this shard owns
+    private boolean ownsDay(long epochDay) {
+        return (shardFrom == null || epochDay >= shardFrom.toEpochDay()) && (shardTo == null || epochDay <= shardTo.toEpochDay());
+    }
+
+    //default segment directory for a schedule file: "schedule" for SCHEDULE.csv, "name-schedule" for any other "name.csv",
+    //so shards started in one working directory with their own scheduler.file never share segment files
+    private static String segmentDirFor(String scheduleFile) {
+        String base = scheduleFile.toLowerCase().endsWith(".csv") ? scheduleFile.substring(0, scheduleFile.length() - 4) : scheduleFile;
+        return base.equalsIgnoreCase("SCHEDULE") ? "schedule" : base + "-schedule";
     }
 
     //set a callback to log messages which is appending to a GUI text area. 
@@ -74,7 +166,15 @@ public class ServerModel {
             return;
         }
         running = true;
+        reaper.start();
         serverMessage("Server started on port " + PORT + ". Waiting for clients...");
+        if (isFollower()) {
+            //tail the primary's mutation stream in the background
+            Thread replicaThread = new Thread(this::followPrimary);
+            replicaThread.setDaemon(true);
+            replicaThread.start();
+            serverMessage("Running as follower of " + PRIMARY + ". Writes are forwarded to the primary.");
+        }
         //background thread to accept client connections
         Thread acceptThread = new Thread(() -> {
             try {
@@ -84,8 +184,14 @@ public class ServerModel {
                     //label this client and increment counter
                     int clientId = clientCount.incrementAndGet();
                     String clientName = "Client-" + clientId + " (" + clientSocket.getInetAddress().getHostAddress() + ")";
+                    if (openConnections.get() >= MAX_CONNECTIONS) {
+                        //saturated, answer at once rather than starting yet another thread
+                        refuseConnection(clientSocket, clientName);
+                        continue;
+                    }
                     serverMessage("Connection accepted from " + clientName);
                     //handle this client on a new thread
+                    openConnections.incrementAndGet();
                     Thread clientThread = new Thread(new ClientHandler(clientSocket, clientName));
                     clientThread.setDaemon(true);
                     clientThread.start();
@@ -111,6 +217,14 @@ public class ServerModel {
         acceptThread.start();
     }
 
+    //tells a client the server is overloaded and closes its connection
+    private void refuseConnection(Socket clientSocket, String clientName) {
+        try (Socket socket = clientSocket; PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            out.println(admission.busy());
+        } catch (IOException ignore) {}
+        serverMessage("Refused " + clientName + ": " + MAX_CONNECTIONS + " connections already open");
+    }
+
     /**
      * Stops the server by closing the ServerSocket and halting the accept loop.
      * Already connected client threads if there are any will finish processing their requests.
@@ -120,6 +234,7 @@ public class ServerModel {
             return;
         }
         running = false;
+        reaper.stop();
         try {
             if (serverSocket != null) {
                 serverSocket.close();  //this will cause the accept loop to exit
@@ -133,6 +248,8 @@ public class ServerModel {
     /**
      * Inner class that handles an individual client connection in a separate thread.
      * It reads one request from the client, processes it, and sends back a response.
+     * The connection is registered with the reaper so a client that stops sending or stops reading is cut off,
+     * and a request longer than ConnectionReaper.MAX_REQUEST_BYTES is refused.
      */
     private class ClientHandler implements Runnable {
         private final Socket socket;
@@ -146,73 +263,153 @@ public class ServerModel {
 
         @Override
         public void run() {
-            try (
-                //initalize in and out streams
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
-            ) { 
+            ConnectionReaper.Tracked tracked = null;
+            PrintWriter out = null;
+            try {
+                tracked = reaper.register(socket, clientName);
+                //initalize in and out streams, requests are read as bytes and split in place by Request
+                InputStream in = new BufferedInputStream(tracked.in());
+                out = new PrintWriter(tracked.out(), true);
                 //read a single line command from the client
-                String request = in.readLine();
-                if (request == null) {
+                Request request = new Request();
+                tracked.startRequest();
+                if (!request.readLine(in, ConnectionReaper.MAX_REQUEST_BYTES)) {
                     return;  //check no request means client disconnected
                 }
+                tracked.requestRead();
                 serverMessage(clientName + " >> " + request);  //log received command
 
                 //process the request and generate a response
-                String response;
-                try {
-                    //calls handle request method
-                    response = handleRequest(request);
-                } catch (IncorrectActionException e) {
-                    //catches the incorrectActionException as per biref
-                    response = "Exception: " + e.getMessage();
+                String response = handleRequest(request, in, out, tracked);
+                if (response == null) {
+                    return;  //a streaming command has already written everything it sends
                 }
 
                 //send the response back to the client
                 out.println(response);
                 serverMessage(clientName + " << " + response.replace("\n", " | "));
+            } catch (Request.TooLongException e) {
+                reaper.countOversize();
+                out.println("Error: " + e.getMessage() + ", connection closed.");
+                serverMessage("Error handling " + clientName + ": " + e.getMessage());
+            } catch (SocketTimeoutException e) {
+                reaper.countReadTimeout();
+                serverMessage("Error handling " + clientName + ": no data for " + ConnectionReaper.READ_TIMEOUT_MILLIS + " ms");
             } catch (IOException e) {
                 serverMessage("Error handling " + clientName + ": " + e.getMessage());
             } finally {
+                if (tracked != null) {
+                    reaper.unregister(tracked);
+                }
                 try {
                     socket.close();
                 } catch (IOException ignore) {}
+                openConnections.decrementAndGet();
                 serverMessage(clientName + " disconnected.");
             }
         }
     }
 
     /**
-     * Parses and handles a single client request command.
-     * Recognized commands: add, remove, displayschedule, earlylectures, stop.
-     * Returns the result string to send back to the client.
-     * @throws IncorrectActionException if the action command is not supported.
+     * Builds the table of recognized commands: add, remove, displayschedule, ifchanged, utilization, autoschedule, earlylectures, status, stop,
+     * and replicate, subscribe and import which keep using the connection after the request line.
+     */
+    private Command[] buildCommands() {
+        return new Command[] {
+            new Command("add", WRITE, true, (request, in, out, connection) -> addLecture(request)),
+            new Command("remove", WRITE, true, (request, in, out, connection) -> removeLecture(request)),
+            new Command("displayschedule", READ, false, (request, in, out, connection) -> displaySchedule(request)),
+            new Command("ifchanged", READ, false, (request, in, out, connection) -> ifChanged(request)),
+            new Command("utilization", READ, false, (request, in, out, connection) -> utilization(request)),
+            new Command("autoschedule", WRITE, true, (request, in, out, connection) -> autoSchedule(request)),
+            new Command("earlylectures", COMPACTION, true, (request, in, out, connection) -> earlyLectures()),
+            new Command("status", READ, false, (request, in, out, connection) -> replicationStatus()),
+            //stop command indicates the client wishes to terminate its session.
+            //the server will respond with "TERMINATE", and the client should interpret it as a signal to close.
+            new Command("stop", READ, false, (request, in, out, connection) -> "TERMINATE"),
+            //a follower asked for the mutation stream, keep this connection open and stream changes to it
+            new Command("replicate", STREAM, false, (request, in, out, connection) -> {
+                streamMutations(out, connection.clientName(), new MutationStream(null, null));
+                return null;
+            }),
+            //a client subscribed to a date range, keep this connection open and push its changes
+            new Command("subscribe", STREAM, false, (request, in, out, connection) -> {
+                subscribe(request, out, connection.clientName());
+                return null;
+            }),
+            //a bulk import follows on the same connection, read it row by row until END
+            new Command("import", BULK, false, (request, in, out, connection) -> importLectures(in, connection)),
+        };
+    }
+
+    /**
+     * Handles a single client request command by looking its action up in the command table.
+     * Commands are expected in CSV format: action, date, time, room, module (depending on action).
+     * The request must first pass admission control: the client's and the command class's rate limits, and a free
+     * request slot, or for a stream a free stream place, otherwise the client is told to retry later.
+     * A follower forwards a write as a "forwardedfor,clientAddress" line followed by the client's request. If the
+     * follower's address is listed in scheduler.followers the write is charged to that client's address, otherwise
+     * to the follower's own address as the marker cannot be trusted.
+     * Returns the result string to send back to the client, or null if the command wrote its own output.
+     * An unsupported action gets the same "Exception: Unsupported action" reply as before without an exception being thrown.
      */
-    private String handleRequest(String request) throws IncorrectActionException {
-        if (request == null || request.isBlank()) {
+    private String handleRequest(Request request, InputStream in, PrintWriter out, ConnectionReaper.Tracked connection) throws IOException {
+        String clientAddress = connection.address();
+        if (request.isBlank()) {
             return "Error: Empty request.";
         }
-        //commands are expected in CSV format: action, date, time, room, module (depending on action)
-        String[] parts = request.split(",", -1);
-        String action = parts[0].trim().toLowerCase();
-
-        switch (action) {
-            case "add":
-                return addLecture(parts);
-            case "remove":
-                return removeLecture(parts);
-            case "displayschedule":
-                return displaySchedule();
-            case "earlylectures":
-                return earlyLectures();
-            case "stop":
-                //stop command indicates the client wishes to terminate its session.
-                //the server will respond with "TERMINATE", and the client should interpret it as a signal to close.
-                return "TERMINATE";
-            default:
-                //unrecognizzed command throws inccorrect action exception
-                throw new IncorrectActionException("Unsupported action: '" + action + "'"); // [ADDED]
+        boolean forwarded = request.fieldEquals(0, FORWARDED_FOR);
+        if (forwarded) {
+            if (FOLLOWERS.contains(clientAddress) && request.hasField(1)) {
+                clientAddress = request.field(1);
+            }
+            //the client's own request follows on the next line
+            connection.startRequest();
+            if (!request.readLine(in, ConnectionReaper.MAX_REQUEST_BYTES)) {
+                return "Error: Forwarded request missing.";
+            }
+            connection.requestRead();
         }
+        for (Command command : commands) {
+            if (request.fieldEquals(0, command.name)) {
+                if (forwarded && !command.forwarded) {
+                    return "Error: Only writes can be forwarded.";
+                }
+                String refused = admission.admit(clientAddress, command.commandClass);
+                if (refused != null) {
+                    return refused;
+                }
+                //streams stay open for as long as the client wants so they take a stream place instead of a request slot,
+                //and are not counted against MAX_CONNECTIONS so they cannot crowd out ordinary requests
+                if (command.commandClass == STREAM) {
+                    String noPlace = admission.openStream(clientAddress);
+                    if (noPlace != null) {
+                        return noPlace;
+                    }
+                    openConnections.decrementAndGet();
+                    try {
+                        return command.handler.handle(request, in, out, connection);
+                    } finally {
+                        openConnections.incrementAndGet();  //ClientHandler takes the connection off the count when it closes
+                        admission.closeStream(clientAddress);
+                    }
+                }
+                if (!admission.tryStart()) {
+                    return admission.busy();
+                }
+                try {
+                    //a follower only serves reads, anything that changes the schedule goes to the primary
+                    if (command.forwarded && isFollower()) {
+                        return forwardToPrimary(request.toString(), clientAddress);
+                    }
+                    return command.handler.handle(request, in, out, connection);
+                } finally {
+                    admission.finish();
+                }
+            }
+        }
+        //unrecognizzed command, reported like the IncorrectActionException required in the brief
+        return "Exception: Unsupported action: '" + request.field(0).toLowerCase() + "'";
     }
 
     /**
@@ -222,47 +419,248 @@ public class ServerModel {
      * Synchronized to prevent concurrent modifications to the schedule.
      * @return confirmation or error message.
      */
-    private String addLecture(String[] parts) {
-        if (parts.length < 5) {
+    private String addLecture(Request request) {
+        if (request.fieldCount() < 5) {
             return "Error: Invalid format. Use add,date,time,room,module";
         }
-        String date = parts[1].trim();
-        String time = parts[2].trim();
-        String room = parts[3].trim();
-        String module = parts[4].trim();
-        String newKey = date + " " + time;
+        String invalid = checkSlot(request);
+        if (invalid != null) {
+            return invalid;
+        }
+        String date = request.field(1);
+        String time = request.field(2);
+        String room = request.field(3);
+        String module = request.field(4);
+        String newKey = request.slotKey(1, 2);
 
         //synchronize on the schedule for thread safe check and insert
         synchronized (schedule) {
             //check for any conflict at the given date and time
-            for (Map.Entry<String, String> entry : schedule.entrySet()) {
-                String[] keyParts = entry.getKey().split(" ");
-                String entryDate = keyParts[0];
-                String entryTime = keyParts[1];
-                String[] valueParts = entry.getValue().split(",");
-                String entryRoom = valueParts[0];
-                String entryModule = valueParts[1];
-
-                if (entryDate.equals(date) && entryTime.equals(time)) {
-                    //a lecture is already scheduled at the exact same date and time
-                    if (entryRoom.equalsIgnoreCase(room)) {
-                        //same room conflict
-                        return "Clash: Room already booked at " + time + " on " + date;
-                    }
-                    if (!entryModule.equalsIgnoreCase(module)) {
-                        //different module at the same time assume 
-                        return "Clash: Lecture already Scheduled (" + entryModule + ") at " + time + " on " + date;
-                    }
-                }
+            String clash = findClash(date, time, room, module);
+            if (clash != null) {
+                return clash;
             }
             //no conflict so add the new lecture
-            schedule.put(newKey, room + "," + module);
+            putLecture(newKey, room + "," + module);
             //add changes to the CVS file
             saveScheduleCSV();  
         }
         return "Lecture scheduled: " + module + " at " + time + " on " + date + " in " + room;
     }
 
+    /**
+     * Books a lecture in the earliest free hourly slot (09:00 to 17:00 on a weekday) in a date range.
+     * Expected format: autoschedule,from,to,module or autoschedule,from,to,module,room
+     * Finds the slot with one occupancy mask lookup per day, and searches and books under one lock
+     * so nobody else can take the slot in between. Without a room the lecture is booked in room TBA.
+     * @return the same confirmation as add, or a clash message if every slot in the range is taken.
+     */
+    private String autoSchedule(Request request) {
+        long fromDay = request.date(1);
+        long toDay = request.date(2);
+        if (fromDay == Long.MIN_VALUE || toDay == Long.MIN_VALUE || fromDay > toDay || !request.hasField(3)) {
+            return "Error: Invalid format. Use autoschedule,from,to,module[,room] with dates as YYYY-MM-DD and from not after to";
+        }
+        String module = request.field(3);
+        String room = request.hasField(4) ? request.field(4) : UNASSIGNED_ROOM;
+        synchronized (schedule) {
+            for (long day = fromDay; day <= toDay; day++) {
+                //1970-01-01 was a Thursday, so (day + 3) % 7 is 0 on Mondays; skip Saturday and Sunday
+                if (Math.floorMod(day + 3, 7) >= 5 || !ownsDay(day)) {
+                    continue;
+                }
+                int taken = occupancy.getOrDefault(day, 0);
+                if (taken != FULL_DAY) {
+                    int hour = 9 + Integer.numberOfTrailingZeros(~taken);
+                    String date = LocalDate.ofEpochDay(day).format(dateFormatter);
+                    String time = (hour < 10 ? "0" + hour : String.valueOf(hour)) + ":00";
+                    putLecture(date + " " + time, room + "," + module);
+                    saveScheduleCSV();
+                    return "Lecture scheduled: " + module + " at " + time + " on " + date + " in " + room;
+                }
+            }
+        }
+        return "Clash: No free slot between " + request.field(1) + " and " + request.field(2);
+    }
+
+    /**
+     * Checks a new lecture against the one already booked at the same date and time, if any.
+     * Only one lecture can be stored per date and time so this is a single lookup rather than a scan.
+     * Caller must hold the schedule lock.
+     * @return the clash message, or null if the lecture can be added.
+     */
+    private String findClash(String date, String time, String room, String module) {
+        String existing = schedule.get(date + " " + time);
+        if (existing == null) {
+            return null;
+        }
+        int comma = existing.indexOf(',');
+        String entryRoom = existing.substring(0, comma);
+        String entryModule = existing.substring(comma + 1);
+        //a lecture is already scheduled at the exact same date and time
+        if (entryRoom.equalsIgnoreCase(room)) {
+            //same room conflict
+            return "Clash: Room already booked at " + time + " on " + date;
+        }
+        if (!entryModule.equalsIgnoreCase(module)) {
+            //different module at the same time assume 
+            return "Clash: Lecture already Scheduled (" + entryModule + ") at " + time + " on " + date;
+        }
+        return null;
+    }
+
+    /**
+     * Imports lectures streamed by the client after an import command.
+     * Expected format: one date,time,room,module row per line, ending with a line containing END.
+     * Rows are validated as they arrive and applied in batches of IMPORT_BATCH_SIZE, each batch being
+     * clash checked and added under one lock and saved once, so memory use does not grow with the file.
+     * Rows follow the same rules as add, so a row add accepts is never rejected by import.
+     * Each row must arrive within the request timeout and the whole import within IMPORT_TIMEOUT_MILLIS, otherwise the
+     * connection is closed by the reaper so a client trickling rows cannot hold a request slot; rows read by then are kept.
+     * @return a summary of accepted, clashing and malformed rows, with details of the first few rejected rows in line order.
+     */
+    private String importLectures(InputStream in, ConnectionReaper.Tracked connection) throws IOException {
+        Request row = new Request();  //reused for every row
+        long importDeadline = System.nanoTime() + ConnectionReaper.IMPORT_TIMEOUT_MILLIS * 1_000_000L;
+        if (isFollower()) {
+            //read the rows without keeping them so the client still gets this reply
+            while (true) {
+                connection.startRequest(importDeadline);
+                try {
+                    if (!row.readLine(in, ConnectionReaper.MAX_REQUEST_BYTES) || (row.fieldCount() == 1 && row.fieldEquals(0, END))) {
+                        break;
+                    }
+                } catch (Request.TooLongException e) {
+                    if (!Request.skipLine(in)) {
+                        break;
+                    }
+                }
+            }
+            connection.requestRead();
+            return "Error: Imports must be sent to the primary " + PRIMARY;
+        }
+        List<String[]> batch = new ArrayList<>();
+        //line number to why that row was rejected, for the first rejected rows by line number
+        NavigableMap<Integer, String> details = new TreeMap<>();
+        int[] counts = new int[3];  //accepted, clashing, malformed
+        int lineNumber = 0;
+        boolean ended = false;
+        try {
+            while (true) {
+                connection.startRequest(importDeadline);
+                try {
+                    if (!row.readLine(in, ConnectionReaper.MAX_REQUEST_BYTES)) {
+                        break;
+                    }
+                } catch (Request.TooLongException e) {
+                    //an over long row is malformed like any other, the rows around it are still imported
+                    reaper.countOversize();
+                    lineNumber++;
+                    counts[2]++;
+                    addImportDetail(details, lineNumber, e.getMessage());
+                    if (!Request.skipLine(in)) {
+                        break;
+                    }
+                    continue;
+                }
+                //the row has arrived, applying a batch below does not count against the client's time
+                connection.requestRead();
+                if (row.fieldCount() == 1 && row.fieldEquals(0, END)) {
+                    ended = true;
+                    break;
+                }
+                lineNumber++;
+                if (row.isBlank()) {
+                    continue;
+                }
+                String problem = validateImportRow(row);
+                if (problem != null) {
+                    counts[2]++;
+                    addImportDetail(details, lineNumber, problem);
+                    continue;
+                }
+                batch.add(new String[]{ String.valueOf(lineNumber), row.field(0), row.field(1), row.field(2), row.field(3) });
+                if (batch.size() == IMPORT_BATCH_SIZE) {
+                    applyImportBatch(batch, counts, details);
+                }
+            }
+        } finally {
+            connection.requestRead();
+            //rows read before the connection broke or was closed as too slow are kept
+            applyImportBatch(batch, counts, details);
+        }
+        StringBuilder report = new StringBuilder("Import complete: ")
+                .append(counts[0]).append(" accepted, ")
+                .append(counts[1]).append(" clashing, ")
+                .append(counts[2]).append(" malformed");
+        if (!ended) {
+            report.append(" (connection ended before END, rows received so far were kept)");
+        }
+        for (Map.Entry<Integer, String> detail : details.entrySet()) {
+            report.append("\nLine ").append(detail.getKey()).append(": ").append(detail.getValue());
+        }
+        int hidden = counts[1] + counts[2] - details.size();
+        if (hidden > 0) {
+            report.append("\n... and ").append(hidden).append(" more rejected rows");
+        }
+        return report.toString();
+    }
+
+    //returns why an imported row cannot be used, or null if it is a well formed lecture on a date this server owns
+    private String validateImportRow(Request row) {
+        if (row.fieldCount() != 4) {
+            return "Expected date,time,room,module";
+        }
+        long day = row.date(0);
+        if (day == Long.MIN_VALUE) {
+            return "Invalid date '" + row.field(0) + "'. Use YYYY-MM-DD";
+        }
+        if (!ownsDay(day)) {
+            return row.field(0) + " is not owned by this server (" + SHARD + ")";
+        }
+        if (row.time(1) < 0) {
+            return "Invalid time '" + row.field(1) + "'. Use hh:mm";
+        }
+        if (!row.hasField(2) || !row.hasField(3)) {
+            return "Room and module are required";
+        }
+        return null;
+    }
+
+    //keeps why a row was rejected if it is among the first IMPORT_MAX_DETAILS rejected rows by line number
+    private static void addImportDetail(NavigableMap<Integer, String> details, int lineNumber, String problem) {
+        if (details.size() < IMPORT_MAX_DETAILS) {
+            details.put(lineNumber, problem);
+        } else if (lineNumber < details.lastKey()) {
+            //clashes are only found when their batch is applied, after later malformed rows were already seen
+            details.pollLastEntry();
+            details.put(lineNumber, problem);
+        }
+    }
+
+    //clash checks and adds one batch of validated rows under a single lock, saves once, then empties the batch
+    private void applyImportBatch(List<String[]> batch, int[] counts, NavigableMap<Integer, String> details) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        synchronized (schedule) {
+            for (String[] row : batch) {
+                //row is lineNumber, date, time, room, module; earlier rows of the batch are already in the schedule
+                String clash = findClash(row[1], row[2], row[3], row[4]);
+                if (clash != null) {
+                    counts[1]++;
+                    addImportDetail(details, Integer.parseInt(row[0]), clash);
+                } else {
+                    putLecture(row[1] + " " + row[2], row[3] + "," + row[4]);
+                    counts[0]++;
+                }
+            }
+            saveScheduleCSV();
+        }
+        serverMessage("Imported batch of " + batch.size() + " rows, " + counts[0] + " accepted so far");
+        batch.clear();
+    }
+
     /**
      * Removes a lecture from the schedule.
      * Expected format: remove,date,time,room,module
@@ -270,72 +668,273 @@ public class ServerModel {
      * Synchronized to prevent concurrent modifications.
      * @return confirmation or error message.
      */
-    private String removeLecture(String[] parts) {
-        if (parts.length < 5) {
+    private String removeLecture(Request request) {
+        if (request.fieldCount() < 5) {
             return "Error: Invalid format. Use remove,date,time,room,module";
         }
-        String date = parts[1].trim();
-        String time = parts[2].trim();
-        String room = parts[3].trim();
-        String module = parts[4].trim();
-        String key = date + " " + time;
+        String invalid = checkSlot(request);
+        if (invalid != null) {
+            return invalid;
+        }
+        String date = request.field(1);
+        String time = request.field(2);
+        String room = request.field(3);
+        String module = request.field(4);
+        String key = request.slotKey(1, 2);
 
         synchronized (schedule) {
-            if (!schedule.containsKey(key)) {
+            String existing = schedule.get(key);
+            if (existing == null) {
                 return "Error: No lecture found at " + time + " on " + date;
             }
             //check that the room and module match the stored entry
-            String[] valueParts = schedule.get(key).split(",");
-            String entryRoom = valueParts[0];
-            String entryModule = valueParts[1];
+            int comma = existing.indexOf(',');
+            String entryRoom = existing.substring(0, comma);
+            String entryModule = existing.substring(comma + 1);
             if (!entryRoom.equalsIgnoreCase(room) || !entryModule.equalsIgnoreCase(module)) {
                 return "Error: No matching lecture found at " + time + " on " + date + " in room " + room;
             }
             //remove the lecture
-            schedule.remove(key);
+            deleteLecture(key);
             //rewrite new timetable to CSV
             saveScheduleCSV();  
         }
         return "Lecture removed: " + module + " at " + time + " on " + date + " in room " + room;
     }
 
+    /**
+     * Checks the date and time fields (1 and 2) of an add or remove request.
+     * @return an error message if either is malformed or the date belongs to another shard, null if the slot is usable.
+     */
+    private String checkSlot(Request request) {
+        long day = request.date(1);
+        if (day == Long.MIN_VALUE) {
+            return "Error: Invalid date '" + request.field(1) + "'. Use YYYY-MM-DD";
+        }
+        if (!ownsDay(day)) {
+            return "Error: " + request.field(1) + " is not owned by this server (" + SHARD + ")";
+        }
+        if (request.time(2) < 0) {
+            return "Error: Invalid time '" + request.field(2) + "'. Use hh:mm";
+        }
+        return null;
+    }
+
     /**
      * Displays the schedule for the current week (Monday through Friday).
-     * Retrieves all lectures between this weeks Monday and Friday and formats them in a table.
-     * Synchronized to prevent concurrent read and write issues while iterating the schedule.
+     * Expected format: displayschedule or displayschedule,from,to to list any other date range instead.
      * @return a multi line string listing the week’s lectures, or a message if none.
      */
-    private String displaySchedule() {
+    private String displaySchedule(Request request) {
+        LocalDate[] range = requestedRange(request, 1);
+        if (range == null) {
+            return "Error: Invalid format. Use displayschedule,from,to with dates as YYYY-MM-DD and from not after to";
+        }
+        return displaySchedule(range[0], range[1]);
+    }
+
+    //the from and to dates at fields first and first + 1, or the current week if the request stops before them; null if malformed or from is after to
+    private LocalDate[] requestedRange(Request request, int first) {
+        LocalDate today = LocalDate.now();
+        if (request.fieldCount() < first + 2) {
+            return new LocalDate[]{ today.with(DayOfWeek.MONDAY), today.with(DayOfWeek.FRIDAY) };
+        }
+        long fromDay = request.date(first);
+        long toDay = request.date(first + 1);
+        if (fromDay == Long.MIN_VALUE || toDay == Long.MIN_VALUE || fromDay > toDay) {
+            return null;
+        }
+        return new LocalDate[]{ LocalDate.ofEpochDay(fromDay), LocalDate.ofEpochDay(toDay) };
+    }
+
+    /**
+     * Answers a read only if its result may have changed since the client last fetched it.
+     * Expected format: ifchanged,etag,displayschedule[,from,to] where etag is the one from the client's
+     * last reply for the same read, or empty the first time.
+     * The ETag is built from this server's run, the range and the last change to any day in it, so it is
+     * worked out from the per day versions without building the schedule table.
+     * @return NOTMODIFIED,etag if the client's copy is still current, otherwise VERSION,etag followed by the full reply.
+     */
+    private String ifChanged(Request request) {
+        if (!request.fieldEquals(2, DISPLAY_SCHEDULE)) {
+            return "Error: Invalid format. Use ifchanged,etag,displayschedule[,from,to]";
+        }
+        LocalDate[] range = requestedRange(request, 3);
+        if (range == null) {
+            return "Error: Invalid format. Use ifchanged,etag,displayschedule,from,to with dates as YYYY-MM-DD and from not after to";
+        }
+        //version and table are taken under one lock so the ETag matches the reply it is sent with
+        synchronized (schedule) {
+            long version = 0;
+            for (long dayVersion : dayVersions.subMap(range[0].format(dateFormatter), true, range[1].format(dateFormatter), true).values()) {
+                version = Math.max(version, dayVersion);
+            }
+            String etag = instanceId + "." + range[0].toEpochDay() + "." + range[1].toEpochDay() + "." + version;
+            if (etag.equals(request.field(1))) {
+                return "NOTMODIFIED," + etag;
+            }
+            return "VERSION," + etag + "\n" + displaySchedule(range[0], range[1]);
+        }
+    }
+
+    /**
+     * Reports how full the lecture slots are. Expected format: utilization or utilization,from,to for another range than this week.
+     * Per day, per week and peak hour figures for the range come from the occupancy masks, one lookup per day,
+     * the per room and per module figures from per day counters and the all dates peak hours from per hour counters,
+     * all kept up to date on every change, so the schedule itself is never scanned.
+     * Slot figures only count the weekday 09:00-17:00 hourly slots owned by this server; room and module names are
+     * counted ignoring case, as clash checks compare them, and shown in upper case.
+     * utilization,from,to,counts returns the raw counts instead, for a client to add up the reports of several servers:
+     * UTILIZATION,from,to then DAY,date,booked per weekday, HOURS and ALLHOURS with the lectures in each hourly slot
+     * in the range and over all dates, and ROOM,name,lectures and MODULE,name,lectures lines.
+     * @return a multi line report.
+     */
+    private String utilization(Request request) {
+        LocalDate[] range = requestedRange(request, 1);
+        if (range == null) {
+            return "Error: Invalid format. Use utilization,from,to with dates as YYYY-MM-DD and from not after to";
+        }
+        long fromDay = range[0].toEpochDay();
+        long toDay = range[1].toEpochDay();
+        if (toDay - fromDay >= MAX_UTILIZATION_DAYS) {
+            return "Error: Utilization range longer than " + MAX_UTILIZATION_DAYS + " days";
+        }
+        boolean counts = request.fieldEquals(3, COUNTS);
+        synchronized (schedule) {
+            StringBuilder sb = new StringBuilder(counts ? "UTILIZATION," + range[0] + "," + range[1] + "\n"
+                    : "Utilization " + range[0] + " to " + range[1] + ":\nDATE       | SLOTS | USED\n");
+            int[] rangeHours = new int[9];
+            Map<String, Integer> rangeRooms = new HashMap<>();
+            Map<String, Integer> rangeModules = new HashMap<>();
+            //week's Monday (day number) to its booked and available slot counts
+            Map<Long, int[]> weeks = new TreeMap<>();
+            for (long day = fromDay; day <= toDay; day++) {
+                //1970-01-01 was a Thursday, so (day + 3) % 7 is 0 on Mondays; skip Saturday and Sunday
+                int weekday = Math.floorMod(day + 3, 7);
+                if (!ownsDay(day)) {
+                    continue;
+                }
+                roomsByDay.getOrDefault(day, Collections.emptyMap()).forEach((room, count) -> rangeRooms.merge(room, count, Integer::sum));
+                modulesByDay.getOrDefault(day, Collections.emptyMap()).forEach((module, count) -> rangeModules.merge(module, count, Integer::sum));
+                if (weekday >= 5) {
+                    continue;
+                }
+                int taken = occupancy.getOrDefault(day, 0);
+                int booked = Integer.bitCount(taken);
+                for (int h = 0; h < 9; h++) {
+                    rangeHours[h] += (taken >> h) & 1;
+                }
+                int[] week = weeks.computeIfAbsent(day - weekday, monday -> new int[2]);
+                week[0] += booked;
+                week[1] += 9;
+                if (counts) {
+                    sb.append("DAY,").append(LocalDate.ofEpochDay(day).format(dateFormatter)).append(",").append(booked).append("\n");
+                } else {
+                    sb.append(LocalDate.ofEpochDay(day).format(dateFormatter)).append(" | ").append(booked).append("/9   | ")
+                      .append(percent(booked, 9)).append("\n");
+                }
+            }
+            if (counts) {
+                sb.append("HOURS");
+                for (int lectures : rangeHours) {
+                    sb.append(",").append(lectures);
+                }
+                sb.append("\nALLHOURS");
+                for (int lectures : hourLectures) {
+                    sb.append(",").append(lectures);
+                }
+                rangeRooms.forEach((room, lectures) -> sb.append("\nROOM,").append(room).append(",").append(lectures));
+                rangeModules.forEach((module, lectures) -> sb.append("\nMODULE,").append(module).append(",").append(lectures));
+                return sb.toString();
+            }
+            int booked = 0;
+            int available = 0;
+            for (Map.Entry<Long, int[]> week : weeks.entrySet()) {
+                booked += week.getValue()[0];
+                available += week.getValue()[1];
+                if (weeks.size() > 1) {
+                    sb.append("Week of ").append(LocalDate.ofEpochDay(week.getKey()).format(dateFormatter)).append(": ")
+                      .append(week.getValue()[0]).append("/").append(week.getValue()[1]).append(" slots, ")
+                      .append(percent(week.getValue()[0], week.getValue()[1])).append("\n");
+                }
+            }
+            sb.append("Total: ").append(booked).append("/").append(available).append(" slots, ").append(percent(booked, available)).append("\n");
+            sb.append("Peak hours: ").append(peakHours(rangeHours)).append("\n");
+            sb.append("Peak hours (all dates): ").append(peakHours(hourLectures)).append("\n");
+            sb.append("Rooms: ").append(rankCounts(rangeRooms)).append("\n");
+            sb.append("Modules: ").append(rankCounts(rangeModules));
+            return sb.toString();
+        }
+    }
+
+    private static String percent(int part, int whole) {
+        return (whole == 0 ? 0 : part * 100 / whole) + "%";
+    }
+
+    //the busiest hourly slots with their lecture count, or "none" if no slot is booked
+    private static String peakHours(int[] lecturesPerHour) {
+        int most = 0;
+        for (int count : lecturesPerHour) {
+            most = Math.max(most, count);
+        }
+        if (most == 0) {
+            return "none";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int h = 0; h < lecturesPerHour.length; h++) {
+            if (lecturesPerHour[h] == most) {
+                sb.append(sb.length() == 0 ? "" : ", ").append(h == 0 ? "09" : String.valueOf(9 + h)).append(":00");
+            }
+        }
+        return sb.append(" (").append(most).append(most == 1 ? " lecture)" : " lectures)").toString();
+    }
+
+    //"name count" pairs, most lectures first, or "none" if there are none
+    private static String rankCounts(Map<String, Integer> counts) {
+        if (counts.isEmpty()) {
+            return "none";
+        }
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<>(counts.entrySet());
+        ranked.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> entry : ranked) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(entry.getKey()).append(" ").append(entry.getValue());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Lists the lectures between two dates (inclusive) formatted as a table.
+     * Only the keys inside the range are visited as the schedule is sorted by date and time.
+     * Synchronized to prevent concurrent read and write issues while iterating the schedule.
+     * @return a multi line string listing the lectures, or a message if none.
+     */
+    private String displaySchedule(LocalDate from, LocalDate to) {
         //use a synchronized block to safely go over the schedule
         synchronized (schedule) {
             if (schedule.isEmpty()) {
                 return "No scheduled lectures.";
             }
-            //getting current week to get schedule for the current week
-            LocalDate today = LocalDate.now();
-            LocalDate monday = today.with(DayOfWeek.MONDAY);
-            LocalDate friday = today.with(DayOfWeek.FRIDAY);
             //init string builder and build a schedule for a selected week
             StringBuilder sb = new StringBuilder("Week Schedule:\nDATE       | TIME  | ROOM   | MODULE\n");
-            schedule.entrySet().stream()
-                    .sorted(Map.Entry.comparingByKey())
-                    .forEach(entry -> {
-                        String[] keyParts = entry.getKey().split(" ");
-                        String entryDate = keyParts[0];
-                        String entryTime = keyParts[1];
-                        LocalDate entryDay = LocalDate.parse(entryDate, dateFormatter);
-                        if (!entryDay.isBefore(monday) && !entryDay.isAfter(friday)) {
-                            String[] values = entry.getValue().split(",");
-                            String room = values[0];
-                            String module = values[1];
-                            sb.append(entryDate).append(" | ").append(entryTime)
-                              .append(" | ").append(room).append(" | ").append(module).append("\n");
-                        }
-                    });
+            for (Map.Entry<String, String> entry : rangeOf(from, to).entrySet()) {
+                String key = entry.getKey();
+                String value = entry.getValue();
+                int comma = value.indexOf(',');
+                //key is "YYYY-MM-DD hh:mm" and value is "Room,Module"
+                sb.append(key, 0, 10).append(" | ").append(key, 11, key.length())
+                  .append(" | ").append(value, 0, comma).append(" | ").append(value, comma + 1, value.length()).append("\n");
+            }
             return sb.toString().trim();
         }
     }
 
+    //lectures from the first date to the last date inclusive, as a view of the schedule; caller must hold the schedule lock
+    private SortedMap<String, String> rangeOf(LocalDate from, LocalDate to) {
+        //'~' sorts after the " hh:mm" part of every key so the whole of the last day is included
+        return schedule.subMap(from.format(dateFormatter), true, to.format(dateFormatter) + "~", true);
+    }
+
     /**
      * Shifts all lectures earlier in the day if earlier time slots are available implementation of Early Lectures button.
      * This uses a divide and conquer approach by spawning a separate thread to handle rescheduling for each weekday (Monday Friday).
@@ -394,7 +993,7 @@ public class ServerModel {
 
         //return a confirmation and the updated week schedule to the client
         String resultMessage = "All lectures shifted to earlier slots where possible.\n";
-        resultMessage += displaySchedule();
+        resultMessage += displaySchedule(monday, friday);
         return resultMessage;
     }
 
@@ -411,12 +1010,11 @@ public class ServerModel {
         List<String> times;
         synchronized (schedule) {
             times = new ArrayList<>();
-            for (String key : schedule.keySet()) {
-                if (key.startsWith(dateStr + " ")) {
-                    //extract the "hh:mm" part of the key
-                    String time = key.substring(dateStr.length() + 1);
-                    times.add(time);
-                }
+            //only the keys of this date are visited as the schedule is sorted
+            for (String key : schedule.subMap(dateStr + " ", dateStr + "~").keySet()) {
+                //extract the "hh:mm" part of the key
+                String time = key.substring(dateStr.length() + 1);
+                times.add(time);
             }
         }
         if (times.isEmpty()) {
@@ -436,10 +1034,7 @@ public class ServerModel {
                 //synchronize modifications to the schedule map
                 synchronized (schedule) {
                     //double check the lecture still exists at oldKey 
-                    String value = schedule.remove(oldKey);
-                    if (value != null) {
-                        schedule.put(newKey, value);
-                    }
+                    moveLecture(oldKey, newKey);
                 }
                 //log the move room and module moved from one time to another
                 serverMessage("Moved lecture on " + dateStr + " from " + time + " to " + nextSlot);
@@ -468,13 +1063,47 @@ public class ServerModel {
         }
     }
 
-    /** Loads the lecture schedule from a CSV file into the schedule map. */
+    /**
+     * Loads the lecture schedule from the per day segment files into the schedule map.
+     * If the segment directory is missing or holds no segments but there is an old single schedule file, that file
+     * is loaded and written out as segments, then renamed to end in .migrated so it is never loaded again, for example
+     * after every lecture has been removed and the directory is empty.
+     * Only rows with a valid YYYY-MM-DD date this server owns are loaded.
+     */
     private void loadScheduleCSV() {
-        File file = new File("SCHEDULE.csv");
+        File dir = new File(SEGMENT_DIR);
+        File[] segments = dir.listFiles((d, name) -> name.matches("\\d{4}-\\d{2}-\\d{2}\\.csv"));
+        if (segments != null && segments.length > 0) {
+            for (File segment : segments) {
+                loadCsvFile(segment);
+            }
+            return;
+        }
+        File file = new File(SCHEDULE_FILE);
         if (!file.exists()) {
             //No existing schedule file
             return;  
         }
+        loadCsvFile(file);
+        synchronized (schedule) {
+            for (String key : schedule.keySet()) {
+                dirtyDays.add(key.substring(0, key.indexOf(' ')));
+            }
+            saveScheduleCSV();
+            if (!dirtyDays.isEmpty()) {
+                serverMessage("Error: Could not migrate " + SCHEDULE_FILE + ", it will be loaded again on the next start");
+                return;
+            }
+        }
+        File migrated = new File(SCHEDULE_FILE + ".migrated");
+        if (!file.renameTo(migrated)) {
+            serverMessage("Warning: Could not rename " + SCHEDULE_FILE + " to " + migrated.getName() + ", remove it by hand");
+        }
+        serverMessage("Migrated " + SCHEDULE_FILE + " to per day files in " + SEGMENT_DIR);
+    }
+
+    //adds every date,time,room,module row of a CSV file with a valid date this server owns to the schedule map
+    private void loadCsvFile(File file) {
         try (Scanner scanner = new Scanner(file)) {
             while (scanner.hasNextLine()) {
                 String[] line = scanner.nextLine().split(",", -1);
@@ -483,9 +1112,22 @@ public class ServerModel {
                     String time = line[1].trim();
                     String room = line[2].trim();
                     String module = line[3].trim();
+                    //the date names the row's segment file so it must be exactly YYYY-MM-DD
+                    long day = date.length() == 10 ? slotDay(date) : Long.MIN_VALUE;
+                    if (day == Long.MIN_VALUE) {
+                        serverMessage("Warning: Skipped row with invalid date '" + date + "' in " + file);
+                        continue;
+                    }
+                    if (!ownsDay(day)) {
+                        continue;  //left to the shard that owns the date
+                    }
                     String key = date + " " + time;
                     String value = room + "," + module;
-                    schedule.put(key, value);
+                    String replaced = schedule.put(key, value);
+                    if (replaced != null) {
+                        indexLecture(key, replaced, false);
+                    }
+                    indexLecture(key, value, true);
                 }
             }
         } catch (FileNotFoundException e) {
@@ -493,24 +1135,500 @@ public class ServerModel {
         }
     }
 
-    /** Saves the current lecture schedule to a CSV file (overwriting the file with current data). */
+    /**
+     * Saves the days changed since the last save, each to its own segment file, leaving every other day's file alone.
+     * Each file is written to a temporary file and renamed over the old one so a crash never leaves half a day on disk.
+     * A day with no lectures left has its file deleted.
+     */
     private void saveScheduleCSV() {
-        try (PrintWriter writer = new PrintWriter(new FileWriter("SCHEDULE.csv"))) {
-            //synchronized iteration to avoid concurrent modification while writing
+        if (isFollower()) {
+            return;  //only the primary owns the CSV files
+        }
+        //synchronized so the rows written are the ones in the map and a concurrent save cannot write an older copy
+        synchronized (schedule) {
+            if (dirtyDays.isEmpty()) {
+                return;
+            }
+            File dir = new File(SEGMENT_DIR);
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                serverMessage("Error: Could not create schedule directory " + SEGMENT_DIR);
+                return;
+            }
+            for (Iterator<String> days = dirtyDays.iterator(); days.hasNext(); ) {
+                String day = days.next();
+                try {
+                    saveSegment(dir, day);
+                    days.remove();
+                } catch (IOException e) {
+                    //stays dirty so the next save tries again
+                    serverMessage("Error: Could not save schedule for " + day + " - " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    //rewrites one day's segment file from the schedule map; caller must hold the schedule lock
+    private void saveSegment(File dir, String day) throws IOException {
+        Path target = new File(dir, day + ".csv").toPath();
+        SortedMap<String, String> lectures = schedule.subMap(day + " ", day + "~");
+        if (lectures.isEmpty()) {
+            Files.deleteIfExists(target);
+            return;
+        }
+        Path temp = new File(dir, day + ".csv.tmp").toPath();
+        try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(temp))) {
+            for (Map.Entry<String, String> entry : lectures.entrySet()) {
+                //write each lecture as CSV line: date,time,room,module
+                writer.println(entry.getKey().replace(' ', ',') + "," + entry.getValue());
+            }
+            if (writer.checkError()) {
+                throw new IOException("write to " + temp + " failed");
+            }
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    //records that a lecture's day needs its segment file rewritten; caller must hold the schedule lock
+    private void markDirty(String key) {
+        if (!isFollower()) {
+            dirtyDays.add(key.substring(0, key.indexOf(' ')));
+        }
+    }
+
+    /**
+     * Adds or replaces a lecture and publishes the change to every open mutation stream.
+     * Caller must hold the schedule lock so sequence numbers follow the order changes were made in.
+     */
+    private void putLecture(String key, String value) {
+        String replaced = schedule.put(key, value);
+        if (replaced != null) {
+            indexLecture(key, replaced, false);
+        }
+        indexLecture(key, value, true);
+        markDirty(key);
+        record(new Mutation(++sequence, "ADD", key, null, value));
+    }
+
+    /** Removes a lecture and publishes the change. Caller must hold the schedule lock. */
+    private String deleteLecture(String key) {
+        String value = schedule.remove(key);
+        if (value != null) {
+            indexLecture(key, value, false);
+            markDirty(key);
+            record(new Mutation(++sequence, "REMOVE", key, null, value));
+        }
+        return value;
+    }
+
+    /** Moves a lecture to another slot on the same day and publishes the change. Caller must hold the schedule lock. */
+    private void moveLecture(String oldKey, String newKey) {
+        String value = schedule.remove(oldKey);
+        if (value != null) {
+            indexLecture(oldKey, value, false);
+            String replaced = schedule.put(newKey, value);
+            if (replaced != null) {
+                indexLecture(newKey, replaced, false);
+            }
+            indexLecture(newKey, value, true);
+            markDirty(oldKey);
+            markDirty(newKey);
+            record(new Mutation(++sequence, "MOVE", oldKey, newKey, value));
+        }
+    }
+
+    /**
+     * Keeps the indexes derived from the schedule in step with it, called for every lecture added to or removed from the map.
+     * Caller must hold the schedule lock.
+     */
+    private void indexLecture(String key, String value, boolean added) {
+        long day = slotDay(key);
+        if (day == Long.MIN_VALUE) {
+            return;  //not a real date so it is on no day to count
+        }
+        int change = added ? 1 : -1;
+        int comma = value.indexOf(',');
+        if (comma >= 0) {
+            countOnDay(roomsByDay, day, value.substring(0, comma).toUpperCase(), change);
+            countOnDay(modulesByDay, day, value.substring(comma + 1).toUpperCase(), change);
+        }
+        int hour = slotHour(key);
+        if (hour < 0) {
+            return;  //not one of the hourly 09:00-17:00 slots so it cannot block one
+        }
+        hourLectures[hour - 9] += change;
+        int bit = 1 << (hour - 9);
+        int taken = occupancy.getOrDefault(day, 0);
+        taken = added ? taken | bit : taken & ~bit;
+        if (taken == 0) {
+            occupancy.remove(day);
+        } else {
+            occupancy.put(day, taken);
+        }
+    }
+
+    //adds change to a name's count for a day, a count that drops to 0 is removed and so is a day left with none
+    private static void countOnDay(Map<Long, Map<String, Integer>> byDay, long day, String name, int change) {
+        Map<String, Integer> counts = byDay.computeIfAbsent(day, d -> new HashMap<>());
+        counts.merge(name, change, (a, b) -> a + b == 0 ? null : a + b);
+        if (counts.isEmpty()) {
+            byDay.remove(day);
+        }
+    }
+
+    //day number (from 1970-01-01) of a "YYYY-MM-DD hh:mm" key, or Long.MIN_VALUE if its date is not valid
+    private static long slotDay(String key) {
+        if (key.length() < 10 || key.charAt(4) != '-' || key.charAt(7) != '-') {
+            return Long.MIN_VALUE;
+        }
+        int year = digits(key, 0, 4);
+        int month = digits(key, 5, 2);
+        int day = digits(key, 8, 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > Request.daysInMonth(year, month)) {
+            return Long.MIN_VALUE;
+        }
+        return Request.epochDay(year, month, day);
+    }
+
+    //hour of a "YYYY-MM-DD hh:00" key with a valid date if it is one of the 09:00-17:00 lecture slots, otherwise -1
+    private static int slotHour(String key) {
+        if (key.length() != 16 || key.charAt(13) != ':' || !key.endsWith(":00") || slotDay(key) == Long.MIN_VALUE) {
+            return -1;
+        }
+        int hour = digits(key, 11, 2);
+        return hour >= 9 && hour <= 17 ? hour : -1;
+    }
+
+    //value of count decimal digits of s starting at position p, or -1 if any of them is not a digit
+    private static int digits(String s, int p, int count) {
+        int value = 0;
+        for (int i = p; i < p + count; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    //records which day a mutation changed for ETags, then publishes it; caller must hold the schedule lock
+    private void record(Mutation mutation) {
+        //a move stays on the same day so the old key's date covers both slots
+        dayVersions.put(mutation.key.substring(0, mutation.key.indexOf(' ')), mutation.seq);
+        publish(mutation);
+    }
+
+    //hands a mutation to every stream interested in its date without blocking, a stream that cannot keep up is closed and must resync
+    private void publish(Mutation mutation) {
+        for (MutationStream stream : streams) {
+            if (stream.covers(mutation.key) && !stream.queue.offer(mutation)) {
+                stream.overflowed = true;
+            }
+        }
+    }
+
+    /**
+     * Pushes changes for a date range to a client over an open connection.
+     * Expected format: subscribe,from,to
+     * The client first receives SUBSCRIBED,from,to,count followed by an EVENT,ADD line for each lecture
+     * already in the range, then an EVENT line for each later change (see Mutation.toEvent).
+     */
+    private void subscribe(Request request, PrintWriter out, String clientName) {
+        long fromDay = request.date(1);
+        long toDay = request.date(2);
+        if (fromDay == Long.MIN_VALUE || toDay == Long.MIN_VALUE || fromDay > toDay) {
+            out.println("Error: Invalid format. Use subscribe,from,to with dates as YYYY-MM-DD and from not after to");
+            return;
+        }
+        streamMutations(out, clientName, new MutationStream(request.field(1), request.field(2)));
+    }
+
+    /**
+     * Streams the schedule to a follower or subscriber over an open connection.
+     * Sends a snapshot of the stream's range taken under the schedule lock, then every later mutation in the
+     * range in sequence order, with a heartbeat when idle.
+     * Returns when the connection breaks, the server stops or the stream overflows.
+     */
+    private void streamMutations(PrintWriter out, String clientName, MutationStream stream) {
+        List<String> snapshot = new ArrayList<>();
+        long snapshotSequence;
+        try {
+            //registered inside the try so the finally always takes the stream out again
             synchronized (schedule) {
-                for (Map.Entry<String, String> entry : schedule.entrySet()) {
-                    String[] keyParts = entry.getKey().split(" ");
-                    String date = keyParts[0];
-                    String time = keyParts[1];
-                    String[] valParts = entry.getValue().split(",");
-                    String room = valParts[0];
-                    String module = valParts[1];
-                    //write each lecture as CSV line: date,time,room,module
-                    writer.println(String.join(",", date, time, room, module));
+                //register before releasing the lock so no mutation falls between the snapshot and the stream
+                streams.add(stream);
+                snapshotSequence = sequence;
+                Map<String, String> range = stream.isReplica() ? schedule : schedule.subMap(stream.from, true, stream.to + "~", true);
+                for (Map.Entry<String, String> entry : range.entrySet()) {
+                    snapshot.add(entry.getKey().replace(' ', ',') + "," + entry.getValue());
+                }
+            }
+            if (stream.isReplica()) {
+                serverMessage(clientName + " is replicating from sequence " + snapshotSequence);
+                out.println("SNAPSHOT," + snapshotSequence + "," + snapshot.size());
+                for (String row : snapshot) {
+                    out.println(row);
+                }
+            } else {
+                serverMessage(clientName + " subscribed to changes from " + stream.from + " to " + stream.to);
+                out.println("SUBSCRIBED," + stream.from + "," + stream.to + "," + snapshot.size());
+                for (String row : snapshot) {
+                    out.println("EVENT,ADD," + row);
+                }
+            }
+            out.flush();
+            while (running && !out.checkError()) {
+                Mutation mutation = stream.queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (stream.overflowed) {
+                    serverMessage("Warning: " + clientName + " fell too far behind, closing its stream.");
+                    break;
+                }
+                if (mutation == null) {
+                    long current;
+                    synchronized (schedule) {
+                        current = sequence;
+                    }
+                    out.println("HEARTBEAT," + current + "," + System.currentTimeMillis());
+                } else {
+                    out.println(stream.isReplica() ? mutation.toLine() : mutation.toEvent());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            streams.remove(stream);
+        }
+    }
+
+    /**
+     * Follower loop: connects to the primary, loads its snapshot and applies its mutations in order.
+     * Reconnects with a fresh snapshot if the connection drops, until the server is stopped.
+     */
+    private void followPrimary() {
+        String[] hostPort = PRIMARY.split(":");
+        String host = hostPort[0].trim();
+        int port = hostPort.length > 1 ? Integer.parseInt(hostPort[1].trim()) : 1234;
+        while (running) {
+            try (
+                Socket socket = new Socket(host, port);
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), true)
+            ) {
+                //heartbeats arrive every HEARTBEAT_MILLIS so a much longer silence means the primary is gone
+                socket.setSoTimeout((int) HEARTBEAT_MILLIS * 10);
+                out.println("replicate");
+                String header = in.readLine();
+                if (header == null || !header.startsWith("SNAPSHOT,")) {
+                    throw new IOException("Unexpected reply from primary: " + header);
+                }
+                String[] headerParts = header.split(",");
+                long snapshotSequence = Long.parseLong(headerParts[1]);
+                int rows = Integer.parseInt(headerParts[2]);
+                Map<String, String> snapshot = new HashMap<>();
+                for (int i = 0; i < rows; i++) {
+                    String[] row = in.readLine().split(",", -1);
+                    snapshot.put(row[0] + " " + row[1], row[2] + "," + row[3]);
+                }
+                replaceSchedule(snapshot);
+                appliedSequence = snapshotSequence;
+                primarySequence = snapshotSequence;
+                lastPrimaryMillis = System.currentTimeMillis();
+                serverMessage("Loaded snapshot of " + rows + " lectures from primary at sequence " + snapshotSequence);
+
+                String line;
+                while (running && (line = in.readLine()) != null) {
+                    applyReplicatedLine(line);
+                }
+            } catch (IOException | RuntimeException e) {
+                if (running) {
+                    serverMessage("Warning: Lost connection to primary " + PRIMARY + " - " + e.getMessage());
                 }
             }
+            try {
+                Thread.sleep(RECONNECT_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    //applies one line of the primary's stream: HEARTBEAT,seq,millis or seq,millis,TYPE,... (see Mutation.toLine)
+    private void applyReplicatedLine(String line) {
+        String[] parts = line.split(",", -1);
+        long now = System.currentTimeMillis();
+        if (parts[0].equals("HEARTBEAT")) {
+            primarySequence = Long.parseLong(parts[1]);
+            replicationLagMillis = Math.max(0, now - Long.parseLong(parts[2]));
+            lastPrimaryMillis = now;
+            return;
+        }
+        long seq = Long.parseLong(parts[0]);
+        String date = parts[3];
+        synchronized (schedule) {
+            switch (parts[2]) {
+                case "ADD":
+                    putLecture(date + " " + parts[4], parts[5] + "," + parts[6]);
+                    break;
+                case "REMOVE":
+                    deleteLecture(date + " " + parts[4]);
+                    break;
+                case "MOVE":
+                    moveLecture(date + " " + parts[4], date + " " + parts[5]);
+                    break;
+                default:
+                    serverMessage("Warning: Unknown replicated mutation: " + line);
+            }
+        }
+        appliedSequence = seq;
+        primarySequence = Math.max(primarySequence, seq);
+        replicationLagMillis = Math.max(0, now - Long.parseLong(parts[1]));
+        lastPrimaryMillis = now;
+    }
+
+    //swaps the whole schedule for a snapshot, going through the mutation helpers so streams from this server stay correct
+    private void replaceSchedule(Map<String, String> snapshot) {
+        synchronized (schedule) {
+            for (String key : new ArrayList<>(schedule.keySet())) {
+                if (!snapshot.containsKey(key)) {
+                    deleteLecture(key);
+                }
+            }
+            for (Map.Entry<String, String> entry : snapshot.entrySet()) {
+                if (!entry.getValue().equals(schedule.get(entry.getKey()))) {
+                    putLecture(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    //sends a write request on to the primary and returns its response unchanged
+    private String forwardToPrimary(String request, String clientAddress) {
+        String[] hostPort = PRIMARY.split(":");
+        int port = hostPort.length > 1 ? Integer.parseInt(hostPort[1].trim()) : 1234;
+        StringBuilder response = new StringBuilder();
+        try (Socket socket = new Socket()) {
+            //a hung primary must not hold this thread and its request slot for ever
+            socket.connect(new InetSocketAddress(hostPort[0].trim(), port), FORWARD_TIMEOUT_MILLIS);
+            socket.setSoTimeout(FORWARD_TIMEOUT_MILLIS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+            //names the client so the primary can rate limit it rather than this follower
+            out.println("forwardedfor," + clientAddress);
+            out.println(request);
+            String line;
+            while ((line = in.readLine()) != null) {
+                response.append(line).append("\n");
+            }
+        } catch (SocketTimeoutException e) {
+            return "Error: No reply from primary " + PRIMARY + " within " + FORWARD_TIMEOUT_MILLIS + " ms, the change may not have been applied";
         } catch (IOException e) {
-            serverMessage("Error: Could not save schedule to CSV - " + e.getMessage());
+            return "Error: Could not reach primary " + PRIMARY + " - " + e.getMessage();
+        }
+        return response.toString().trim();
+    }
+
+    /**
+     * Reports this server's role and, for a follower, how far it is behind the primary.
+     * @return a one line status message.
+     */
+    private String replicationStatus() {
+        if (!isFollower()) {
+            long current;
+            synchronized (schedule) {
+                current = sequence;
+            }
+            return "Role: primary | sequence " + current + " | streams " + streams.size() + " | " + admission.stats() + " | " + reaper.stats();
+        }
+        long behind = Math.max(0, primarySequence - appliedSequence);
+        long silentFor = lastPrimaryMillis == 0 ? -1 : System.currentTimeMillis() - lastPrimaryMillis;
+        return "Role: follower of " + PRIMARY + " | applied sequence " + appliedSequence
+                + " | lag " + behind + " mutations, " + replicationLagMillis + " ms"
+                + " | last heard from primary " + silentFor + " ms ago | " + admission.stats() + " | " + reaper.stats();
+    }
+
+    /** One change to the schedule, numbered so followers can apply changes in the same order. */
+    private static class Mutation {
+        private final long seq;
+        private final long millis = System.currentTimeMillis();
+        private final String type;     //ADD, REMOVE or MOVE
+        private final String key;      //"YYYY-MM-DD hh:mm" the lecture was at
+        private final String newKey;   //slot the lecture moved to, only for MOVE
+        private final String value;    //"Room,Module"
+
+        Mutation(long seq, String type, String key, String newKey, String value) {
+            this.seq = seq;
+            this.type = type;
+            this.key = key;
+            this.newKey = newKey;
+            this.value = value;
+        }
+
+        //wire format: seq,millis,ADD|REMOVE,date,time,room,module or seq,millis,MOVE,date,fromTime,toTime,room,module
+        String toLine() {
+            String date = key.substring(0, key.indexOf(' '));
+            String time = key.substring(key.indexOf(' ') + 1);
+            if (newKey != null) {
+                time += "," + newKey.substring(newKey.indexOf(' ') + 1);
+            }
+            return seq + "," + millis + "," + type + "," + date + "," + time + "," + value;
+        }
+
+        //subscriber format: EVENT,ADD|REMOVE,date,time,room,module or EVENT,MOVE,date,fromTime,toTime,room,module
+        String toEvent() {
+            String line = toLine();
+            //drop the seq and millis fields which only followers need
+            return "EVENT," + line.substring(line.indexOf(',', line.indexOf(',') + 1) + 1);
+        }
+    }
+
+    /** Bounded queue of mutations waiting to be sent on one open stream, optionally limited to a date range. */
+    private static class MutationStream {
+        private final BlockingQueue<Mutation> queue = new ArrayBlockingQueue<>(STREAM_QUEUE_CAPACITY);
+        private volatile boolean overflowed = false;
+        private final String from;  //first "YYYY-MM-DD" date streamed, null for a follower which gets every date
+        private final String to;    //last date streamed, null for a follower
+
+        MutationStream(String from, String to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        //true for a follower's stream, false for a client subscription
+        boolean isReplica() {
+            return from == null;
+        }
+
+        //true when a change to the lecture at this key should be sent on this stream
+        boolean covers(String key) {
+            if (isReplica()) {
+                return true;
+            }
+            String date = key.substring(0, key.indexOf(' '));
+            return date.compareTo(from) >= 0 && date.compareTo(to) <= 0;
+        }
+    }
+
+    /** Runs one command, returning the reply or null if it wrote its own output to the connection. */
+    private interface CommandHandler {
+        String handle(Request request, InputStream in, PrintWriter out, ConnectionReaper.Tracked connection) throws IOException;
+    }
+
+    /** Entry of the command table: the action word, its class for rate limiting, whether a follower forwards it, and its handler. */
+    private static class Command {
+        private final byte[] name;        //lower case action matched against the first field of a request
+        private final CommandClass commandClass;
+        private final boolean forwarded;  //changes the schedule so a follower sends it to the primary
+        private final CommandHandler handler;
+
+        Command(String name, CommandClass commandClass, boolean forwarded, CommandHandler handler) {
+            this.name = name.getBytes();
+            this.commandClass = commandClass;
+            this.forwarded = forwarded;
+            this.handler = handler;
         }
     }
 